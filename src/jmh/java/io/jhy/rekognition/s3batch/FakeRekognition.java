@@ -0,0 +1,101 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.rekognition.AbstractAmazonRekognitionAsync;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.DetectModerationLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectModerationLabelsResult;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.ModerationLabel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory Rekognition that answers every image with the same labels, and the same moderation labels, after a
+ * fixed latency. Blocking calls sleep for it; async calls complete from a timer, without holding a thread, as a real
+ * service's network wait wouldn't.
+ */
+class FakeRekognition extends AbstractAmazonRekognitionAsync {
+    private final long latencyMillis;
+    private final List<Label> labels = new ArrayList<>();
+    private final List<ModerationLabel> moderationLabels = new ArrayList<>();
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "fake-rekognition");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    FakeRekognition(long latencyMillis, int numLabels) {
+        this.latencyMillis = latencyMillis;
+        String[] names = {"Person", "Human", "Outdoors", "Nature", "Tree", "Plant", "Sky", "Building", "Car", "Road"};
+        for (int i = 0; i < numLabels; i++) {
+            labels.add(new Label().withName(names[i % names.length]).withConfidence(99.5f - i * 1.3f));
+        }
+        moderationLabels.add(new ModerationLabel().withName("Suggestive").withConfidence(81.2f));
+        moderationLabels.add(new ModerationLabel().withName("Revealing Clothes").withConfidence(78.4f)
+            .withParentName("Suggestive"));
+    }
+
+    @Override
+    public DetectLabelsResult detectLabels(DetectLabelsRequest request) {
+        sleep();
+        return new DetectLabelsResult().withLabels(labels);
+    }
+
+    @Override
+    public Future<DetectLabelsResult> detectLabelsAsync(DetectLabelsRequest request,
+        AsyncHandler<DetectLabelsRequest, DetectLabelsResult> handler) {
+        CompletableFuture<DetectLabelsResult> result = new CompletableFuture<>();
+        timer.schedule(() -> {
+            DetectLabelsResult labelsResult = new DetectLabelsResult().withLabels(labels);
+            handler.onSuccess(request, labelsResult);
+            result.complete(labelsResult);
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    @Override
+    public DetectModerationLabelsResult detectModerationLabels(DetectModerationLabelsRequest request) {
+        sleep();
+        return new DetectModerationLabelsResult().withModerationLabels(moderationLabels);
+    }
+
+    @Override
+    public Future<DetectModerationLabelsResult> detectModerationLabelsAsync(DetectModerationLabelsRequest request,
+        AsyncHandler<DetectModerationLabelsRequest, DetectModerationLabelsResult> handler) {
+        CompletableFuture<DetectModerationLabelsResult> result = new CompletableFuture<>();
+        timer.schedule(() -> {
+            DetectModerationLabelsResult labelsResult =
+                new DetectModerationLabelsResult().withModerationLabels(moderationLabels);
+            handler.onSuccess(request, labelsResult);
+            result.complete(labelsResult);
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    @Override
+    public void setEndpoint(String endpoint) {
+    }
+
+    @Override
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void sleep() {
+        if (latencyMillis == 0)
+            return;
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
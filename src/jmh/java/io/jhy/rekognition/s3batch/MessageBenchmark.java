@@ -0,0 +1,71 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The per-object work on either side of the queue: the scanner's key filter and message encoding, and the
+ * processor's message parsing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"my-photo-bucket/2017/06/holiday/IMG_4711.jpg", "my-photo-bucket/2017/06/holiday/notes/README.txt"})
+    String path;
+
+    private Pattern filter;
+    private String key;
+    private String jsonBody;
+
+    @Setup
+    public void setup() {
+        filter = Scanner.compileFilter(ScanConfig.defaultFilter);
+        key = path.substring(path.indexOf('/') + 1);
+
+        S3ObjectSummary object = new S3ObjectSummary();
+        object.setBucketName(path.substring(0, path.indexOf('/')));
+        object.setKey(key);
+        object.setSize(2417823);
+        object.setETag("9b2cf535f27731c974343645a3985328");
+        object.setLastModified(new Date(1497312000000L));
+        jsonBody = ScanMessage.of(object).toJson();
+    }
+
+    @Benchmark
+    public boolean shouldEnqueue() {
+        return Scanner.shouldEnqueue(filter, key);
+    }
+
+    @Benchmark
+    public Processor.PathSplit pathSplit() {
+        return new Processor.PathSplit(path);
+    }
+
+    @Benchmark
+    public ScanMessage parsePlain() {
+        return ScanMessage.parse(path);
+    }
+
+    @Benchmark
+    public ScanMessage parseJson() {
+        return ScanMessage.parse(jsonBody);
+    }
+}
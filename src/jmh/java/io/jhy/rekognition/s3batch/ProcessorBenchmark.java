@@ -0,0 +1,144 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.jhy.rekognition.s3batch.processor.LabelProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole Processor run over a batch of images, fed through a DirectQueue, with a fake Rekognition and a fake sink
+ * that each take a set time per call. The score is the time per image, so with latency set it shows how well the
+ * pipeline overlaps waiting; with none, its own overhead.
+ * <p>
+ *     Log output is discarded while running, though the lines are still formatted, as they are in production.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(ProcessorBenchmark.images)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessorBenchmark {
+    static final int images = 2000;
+
+    @Param({"sync", "async"})
+    String mode;
+
+    @Param({"0", "20"})
+    long rekognitionMillis;
+
+    @Param({"0", "5"})
+    long sinkMillis;
+
+    @Param({"20"})
+    int concurrency;
+
+    @Param({"false"})
+    boolean moderation;
+
+    private FakeRekognition rek;
+    private List<String> bodies;
+    private PrintStream stdout;
+    private Processor processor;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        rek = new FakeRekognition(rekognitionMillis, 10);
+        bodies = new ArrayList<>(images);
+        for (int i = 0; i < images; i++) {
+            S3ObjectSummary object = new S3ObjectSummary();
+            object.setBucketName("my-photo-bucket");
+            object.setKey("2017/06/holiday/IMG_" + i + ".jpg");
+            object.setSize(2417823);
+            object.setETag(Integer.toHexString(i));
+            bodies.add(ScanMessage.of(object).toJson());
+        }
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    // a fresh processor and a full queue for each run, as a processor can only be started once
+    @Setup(Level.Invocation)
+    public void setupRun() {
+        DirectQueue queue = new DirectQueue(images);
+        for (String body : bodies) {
+            queue.add(body);
+        }
+        queue.close();
+
+        List<String> args = new ArrayList<>();
+        args.add("-concurrency");
+        args.add(Integer.toString(concurrency));
+        if ("async".equals(mode))
+            args.add("-async");
+        if (moderation)
+            args.add("-moderation");
+        ProcessorConfig config = new ProcessorConfig(args.toArray(new String[0]), false);
+        AwsClients clients =
+            new AwsClients(new AWSStaticCredentialsProvider(new BasicAWSCredentials("fake", "fake")), concurrency);
+        processor = new Processor(config, queue, clients, rek);
+        processor.addLabelProcessor(new FakeSink(sinkMillis));
+    }
+
+    @Benchmark
+    public Metrics run() {
+        processor.start();
+        return processor.metrics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+        rek.shutdown();
+    }
+
+    private static class FakeSink implements LabelProcessor {
+        private final long latencyMillis;
+
+        FakeSink(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public void process(List<Label> labels, String path) {
+            if (latencyMillis == 0)
+                return;
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.rekognition.model.Label;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building DynamoDB items from labels, in the steps DynamoWriter takes: the murmur3 id, each label's fields, the whole
+ * Item, and its conversion to the AttributeValues that are sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DynamoItemBenchmark {
+    @Param({"5", "20"})
+    int numLabels;
+
+    private List<Label> labels;
+    private String path;
+    private Item item;
+
+    @Setup
+    public void setup() {
+        String[] names = {"Person", "Human", "Outdoors", "Nature", "Tree", "Plant", "Sky", "Building", "Car", "Road"};
+        labels = new ArrayList<>(numLabels);
+        for (int i = 0; i < numLabels; i++) {
+            labels.add(new Label().withName(names[i % names.length]).withConfidence(99.5f - i * 1.3f));
+        }
+        path = "my-photo-bucket/2017/06/holiday/IMG_4711.jpg";
+        item = DynamoWriter.toItem(labels, path);
+    }
+
+    @Benchmark
+    public String itemId() {
+        return DynamoWriter.itemId(path);
+    }
+
+    @Benchmark
+    public Map<String, Object> labelToFields() {
+        return DynamoWriter.labelToFields(labels.get(0));
+    }
+
+    @Benchmark
+    public Item toItem() {
+        return DynamoWriter.toItem(labels, path);
+    }
+
+    @Benchmark
+    public Map<String, AttributeValue> toAttributeValues() {
+        return ItemUtils.toAttributeValues(item);
+    }
+}
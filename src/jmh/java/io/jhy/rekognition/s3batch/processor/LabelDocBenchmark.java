@@ -0,0 +1,99 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import com.google.gson.Gson;
+import org.apache.commons.codec.Charsets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding Cloud Search label documents: the Gson path the indexer used to take, against LabelDocEncoder. Run with
+ * {@code -prof gc} to compare allocation as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelDocBenchmark {
+    private static final int batchSize = 100;
+    private static final Gson gson = new Gson();
+
+    @Param({"5", "20"})
+    int numLabels;
+
+    private List<Label> labels;
+    private String path;
+    private List<String> batchPaths;
+
+    @Setup
+    public void setup() {
+        String[] names = {"Person", "Human", "Outdoors", "Nature", "Tree", "Plant", "Sky", "Building", "Car", "Road"};
+        labels = new ArrayList<>(numLabels);
+        for (int i = 0; i < numLabels; i++) {
+            labels.add(new Label().withName(names[i % names.length]).withConfidence(99.5f - i * 1.3f));
+        }
+        path = "my-photo-bucket/2017/06/holiday/IMG_4711.jpg";
+        batchPaths = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batchPaths.add("my-photo-bucket/2017/06/holiday/IMG_" + i + ".jpg");
+        }
+    }
+
+    // the old process(): asJson for the debug log, then again for the bytes
+    @Benchmark
+    public byte[] gsonWithDebugString() {
+        CloudSearchIndexer.LabelInsertDoc doc = new CloudSearchIndexer.LabelInsertDoc(labels, path);
+        String debug = doc.asJson();
+        return debug.length() > 0 ? doc.asJsonBytes() : null;
+    }
+
+    @Benchmark
+    public byte[] gson() {
+        return new CloudSearchIndexer.LabelInsertDoc(labels, path).asJsonBytes();
+    }
+
+    // what process() does now: encoded into the reused buffer, uploaded from there
+    @Benchmark
+    public int encoder() {
+        return LabelDocEncoder.get().startBatch().addDoc(labels, path).endBatch().length();
+    }
+
+    // what the batcher and async paths do: encoded, then copied out
+    @Benchmark
+    public byte[] encoderCopy() {
+        return LabelDocEncoder.get().encodeDoc(labels, path);
+    }
+
+    @Benchmark
+    public byte[] gsonBatch() {
+        List<CloudSearchIndexer.LabelInsertDoc> docs = new ArrayList<>(batchSize);
+        for (String batchPath : batchPaths) {
+            docs.add(new CloudSearchIndexer.LabelInsertDoc(labels, batchPath));
+        }
+        return gson.toJson(docs).getBytes(Charsets.UTF_8);
+    }
+
+    @Benchmark
+    public int encoderBatch() {
+        LabelDocEncoder encoder = LabelDocEncoder.get().startBatch();
+        for (String batchPath : batchPaths) {
+            encoder.addDoc(labels, batchPath);
+        }
+        return encoder.endBatch().length();
+    }
+}
@@ -0,0 +1,201 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the messages a Processor is working on, and removes them from the queue once they have been processed
+ * successfully. Deletes are grouped into DeleteMessageBatch calls of up to 10, sent when a batch fills or after a
+ * second at most.
+ * <p>
+ *     A heartbeat extends the visibility timeout of messages that are still in flight as their timeout nears, using
+ *     ChangeMessageVisibilityBatch, so slow jobs aren't handed to another worker part way through. Messages that fail
+ *     are released: they are no longer extended, and reappear on the queue once their timeout lapses.
+ * </p>
+ */
+class Acknowledger implements MessageTracker {
+    private static final int batchSize = 10;
+    private static final long flushMillis = 1000;
+
+    private final AmazonSQSClient sqs;
+    private final String queueUrl;
+    private final int visibilitySecs;
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>(); // by receipt handle
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong numDeleted = new AtomicLong(0);
+    private final AtomicLong numDeleteRequests = new AtomicLong(0);
+    private final AtomicLong numExtended = new AtomicLong(0);
+    private List<Message> pendingDeletes = new ArrayList<>(batchSize);
+
+    Acknowledger(AmazonSQSClient sqs, String queueUrl) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        visibilitySecs = Integer.parseInt(sqs.getQueueAttributes(
+            new GetQueueAttributesRequest(queueUrl).withAttributeNames("VisibilityTimeout"))
+            .getAttributes().get("VisibilityTimeout"));
+
+        long heartbeatMillis = Math.max(1000, visibilitySecs * 1000L / 3);
+        timer.scheduleWithFixedDelay(this::flushDeletes, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    int visibilitySecs() {
+        return visibilitySecs;
+    }
+
+    /**
+     * Start tracking a message, at the time it was received.
+     */
+    @Override
+    public void received(Message message) {
+        inFlight.put(message.getReceiptHandle(),
+            new InFlight(message, System.currentTimeMillis() + visibilitySecs * 1000L));
+    }
+
+    /**
+     * The message was processed (or can be skipped), so remove it from the queue.
+     */
+    @Override
+    public void delete(Message message) {
+        inFlight.remove(message.getReceiptHandle());
+        List<Message> full = null;
+        synchronized (this) {
+            pendingDeletes.add(message);
+            if (pendingDeletes.size() == batchSize) {
+                full = pendingDeletes;
+                pendingDeletes = new ArrayList<>(batchSize);
+            }
+        }
+        if (full != null)
+            deleteBatch(full);
+    }
+
+    /**
+     * Checks if the message's visibility timeout has lapsed (i.e. it wasn't extended in time), in which case it may
+     * have been delivered to another worker.
+     */
+    @Override
+    public boolean isExpired(Message message) {
+        InFlight tracked = inFlight.get(message.getReceiptHandle());
+        return tracked != null && tracked.visibleAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * The message failed; stop extending it so it becomes visible on the queue again to be re-driven.
+     */
+    @Override
+    public void release(Message message) {
+        inFlight.remove(message.getReceiptHandle());
+    }
+
+    /**
+     * Send any pending deletes and stop the heartbeat. Messages still in flight are left to time out.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        flushDeletes();
+        Logger.Info("Deleted %s messages in %s requests, extended visibility %s times.",
+            numDeleted.get(), numDeleteRequests.get(), numExtended.get());
+    }
+
+    private void flushDeletes() {
+        List<Message> batch;
+        synchronized (this) {
+            if (pendingDeletes.isEmpty())
+                return;
+            batch = pendingDeletes;
+            pendingDeletes = new ArrayList<>(batchSize);
+        }
+        deleteBatch(batch);
+    }
+
+    private void deleteBatch(List<Message> batch) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), batch.get(i).getReceiptHandle()));
+        }
+        try {
+            numDeleteRequests.incrementAndGet();
+            DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+            numDeleted.addAndGet(result.getSuccessful().size());
+            // a failed delete just means the message is processed again later, so these aren't retried
+            for (BatchResultErrorEntry failed : result.getFailed()) {
+                Logger.Info("Could not delete %s: %s %s", batch.get(Integer.parseInt(failed.getId())).getBody(),
+                    failed.getCode(), failed.getMessage());
+            }
+        } catch (RuntimeException e) {
+            Logger.Info("Could not delete batch of %s messages: %s", batch.size(), e);
+        }
+    }
+
+    // extends the messages whose timeout will lapse before the next heartbeat
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        long horizon = now + Math.max(2000, visibilitySecs * 1000L / 2);
+        List<InFlight> expiring = new ArrayList<>(batchSize);
+        for (InFlight message : inFlight.values()) {
+            if (message.visibleAt < horizon) {
+                expiring.add(message);
+                if (expiring.size() == batchSize) {
+                    extend(expiring, now);
+                    expiring = new ArrayList<>(batchSize);
+                }
+            }
+        }
+        if (!expiring.isEmpty())
+            extend(expiring, now);
+    }
+
+    private void extend(List<InFlight> batch, long now) {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i),
+                batch.get(i).message.getReceiptHandle()).withVisibilityTimeout(visibilitySecs));
+        }
+        try {
+            ChangeMessageVisibilityBatchResult result =
+                sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+            for (BatchResultErrorEntry failed : result.getFailed()) {
+                Logger.Debug("Could not extend %s: %s", batch.get(Integer.parseInt(failed.getId())).message.getBody(),
+                    failed.getCode());
+                batch.set(Integer.parseInt(failed.getId()), null);
+            }
+            for (InFlight message : batch) {
+                if (message != null) {
+                    message.visibleAt = now + visibilitySecs * 1000L;
+                    numExtended.incrementAndGet();
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.Info("Could not extend visibility of %s messages: %s", batch.size(), e);
+        }
+    }
+
+    private static class InFlight {
+        final Message message;
+        volatile long visibleAt; // when the message will be visible on the queue again, unless extended
+
+        InFlight(Message message, long visibleAt) {
+            this.message = message;
+            this.visibleAt = visibleAt;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.rekognition.AmazonRekognitionAsync;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.DetectModerationLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectModerationLabelsResult;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.ModerationLabel;
+import io.jhy.rekognition.s3batch.processor.Futures;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs the detect stage of a job (labels, and moderation labels if asked for) as a CompletableFuture, rather than
+ * holding a worker thread for it. Rekognition calls are made on the async client, with permits from the limiter
+ * granted without blocking; throttled calls are retried from a timer.
+ * <p>
+ *     Note that the v1 SDK async clients still run each request on a thread from their executor, so the number of
+ *     threads making calls tracks the number of calls in flight; what this saves is the worker thread per job, which
+ *     would otherwise be held through every stage of the job.
+ * </p>
+ */
+class AsyncEngine {
+    private final AmazonRekognitionAsync rek;
+    private final ConcurrencyLimiter limiter;
+    private final AtomicLong numRetries;
+    private final LatencyHistogram labelsLatency;
+    private final LatencyHistogram moderationLatency;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    AsyncEngine(AmazonRekognitionAsync rek, ConcurrencyLimiter limiter, AtomicLong numRetries, Metrics metrics) {
+        this.rek = rek;
+        this.limiter = limiter;
+        this.numRetries = numRetries;
+        labelsLatency = metrics.histogram("rekognition.detectLabels");
+        moderationLatency = metrics.histogram("rekognition.detectModerationLabels");
+    }
+
+    CompletableFuture<List<Label>> detectLabels(DetectLabelsRequest req) {
+        return this.<DetectLabelsResult>call(done -> rek.detectLabelsAsync(req, Futures.completing(done)), labelsLatency, 1)
+            .thenApply(DetectLabelsResult::getLabels);
+    }
+
+    CompletableFuture<List<ModerationLabel>> detectModerationLabels(DetectModerationLabelsRequest req) {
+        return this.<DetectModerationLabelsResult>call(
+            done -> rek.detectModerationLabelsAsync(req, Futures.completing(done)), moderationLatency, 1)
+            .thenApply(DetectModerationLabelsResult::getModerationLabels);
+    }
+
+    // makes a call, given as one that completes the future passed to it, within the limiter, retrying throttles
+    private <R> CompletableFuture<R> call(Consumer<CompletableFuture<R>> send, LatencyHistogram latency,
+        int attempt) {
+        return limiter.acquireAsync().thenCompose(permit -> {
+            long start = System.nanoTime();
+            CompletableFuture<R> call = new CompletableFuture<>();
+            try {
+                send.accept(call);
+            } catch (RuntimeException e) {
+                call.completeExceptionally(e);
+            }
+
+            return call.handle((result, e) -> {
+                latency.recordSince(start);
+                if (e == null)
+                    limiter.onSuccess(System.nanoTime() - start);
+                limiter.release();
+                if (e == null)
+                    return CompletableFuture.completedFuture(result);
+
+                Throwable cause = unwrap(e);
+                if (!(cause instanceof AmazonServiceException) || !Processor.isThrottle((AmazonServiceException) cause)
+                    || attempt >= Processor.maxAttempts)
+                    return Futures.<R>failed(cause);
+
+                limiter.onThrottle();
+                numRetries.incrementAndGet();
+                return delay(Processor.backoff(attempt)).thenCompose(v -> call(send, latency, attempt + 1));
+            }).thenCompose(next -> next);
+        });
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> delayed = new CompletableFuture<>();
+        timer.schedule(() -> delayed.complete(null), millis, TimeUnit.MILLISECONDS);
+        return delayed;
+    }
+
+    static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,289 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.metrics.AwsSdkMetrics;
+import com.amazonaws.metrics.ByteThroughputProvider;
+import com.amazonaws.metrics.MetricCollector;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.metrics.ServiceLatencyProvider;
+import com.amazonaws.metrics.ServiceMetricCollector;
+import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomainAsyncClient;
+import com.amazonaws.services.cloudsearchv2.AmazonCloudSearchClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.rekognition.AmazonRekognitionAsyncClient;
+import com.amazonaws.services.rekognition.AmazonRekognitionClient;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSServiceMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds the AWS clients, one of each shared by everything that calls the service, e.g. one S3 client for the
+ * scanner's listing, image fetches and tagging. Each client has its own HTTP connection pool, so sharing them means
+ * fewer, fuller pools, with connections kept alive between calls.
+ * <p>
+ *     Pools are sized from the number of concurrent jobs: twice that, as a job can have a Rekognition call and an S3
+ *     fetch or tag going at once, and never under the SDK's default of 50. Connections are kept alive with TCP
+ *     keep-alive, reaped once idle for 30 seconds, and replaced after 5 minutes so DNS changes get picked up. Connects
+ *     time out after 5 seconds and reads after 30, rather than the default 50, so a stuck call fails and is retried
+ *     well within an SQS visibility timeout.
+ * </p>
+ * <p>
+ *     The async clients run their calls on pools of non-daemon threads, so {@link #shutdown()} the clients once done
+ *     with them, or the JVM won't exit.
+ * </p>
+ * <p>
+ *     With {@link #exportMetrics(Metrics)}, each service's pool reports how many connections are leased and free,
+ *     how many callers are waiting for one, and how long they wait. A pool with callers waiting limits throughput
+ *     however high the concurrency is.
+ * </p>
+ */
+public class AwsClients {
+    private static final int connectTimeoutMillis = 5000;
+    private static final int socketTimeoutMillis = 30000;
+    private static final long maxIdleMillis = 30000;
+    private static final long connectionTtlMillis = 5 * 60 * 1000;
+
+    private final AWSCredentialsProvider creds;
+    private final int concurrency;
+    private final ClientConfiguration configuration;
+    private final ClientConfiguration rekognitionConfiguration;
+    private AmazonS3Client s3;
+    private AmazonSQSClient sqs;
+    private AmazonRekognitionClient rekognition;
+    private AmazonRekognitionAsyncClient rekognitionAsync;
+    private ExecutorService rekognitionExecutor; // rekognitionAsync's threads
+    private AmazonDynamoDBAsyncClient dynamo;
+    private AmazonCloudSearchClient cloudSearch;
+    private Map<String, AmazonCloudSearchDomainAsyncClient> cloudSearchDomains = new HashMap<>(); // by endpoint
+
+    /**
+     * @param concurrency the number of jobs that may be running at once
+     */
+    public AwsClients(AWSCredentialsProvider creds, int concurrency) {
+        this.creds = creds;
+        this.concurrency = concurrency;
+        configuration = new ClientConfiguration()
+            .withMaxConnections(Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, concurrency * 2))
+            .withConnectionTimeout(connectTimeoutMillis)
+            .withSocketTimeout(socketTimeoutMillis)
+            .withTcpKeepAlive(true)
+            .withReaper(true)
+            .withConnectionMaxIdleMillis(maxIdleMillis)
+            .withConnectionTTL(connectionTtlMillis);
+        // the processor retries throttled calls itself, outside the concurrency limit, so the limiter sees every
+        // throttle rather than only those the SDK gave up on
+        rekognitionConfiguration = new ClientConfiguration(configuration).withMaxErrorRetry(0);
+    }
+
+    /**
+     * Clients using the named credentials profile, checking they can be found first.
+     */
+    public static AwsClients forProfile(String profile, int concurrency) {
+        ProfileCredentialsProvider creds = new ProfileCredentialsProvider(profile);
+        creds.getCredentials(); // credible credential criteria
+        return new AwsClients(creds, concurrency);
+    }
+
+    public int maxConnections() {
+        return configuration.getMaxConnections();
+    }
+
+    public synchronized AmazonS3Client s3() {
+        if (s3 == null)
+            s3 = new AmazonS3Client(creds, configuration);
+        return s3;
+    }
+
+    public synchronized AmazonSQSClient sqs() {
+        if (sqs == null)
+            sqs = new AmazonSQSClient(creds, configuration);
+        return sqs;
+    }
+
+    public synchronized AmazonRekognitionClient rekognition() {
+        if (rekognition == null)
+            rekognition = new AmazonRekognitionClient(creds, rekognitionConfiguration);
+        return rekognition;
+    }
+
+    /**
+     * An async Rekognition client with a thread per concurrent job to make the calls on.
+     */
+    public synchronized AmazonRekognitionAsyncClient rekognitionAsync() {
+        if (rekognitionAsync == null) {
+            rekognitionExecutor = Executors.newFixedThreadPool(concurrency);
+            rekognitionAsync = new AmazonRekognitionAsyncClient(creds, rekognitionConfiguration, rekognitionExecutor);
+        }
+        return rekognitionAsync;
+    }
+
+    public synchronized AmazonDynamoDBAsyncClient dynamo() {
+        if (dynamo == null)
+            dynamo = new AmazonDynamoDBAsyncClient(creds, configuration);
+        return dynamo;
+    }
+
+    public synchronized AmazonCloudSearchClient cloudSearch() {
+        if (cloudSearch == null)
+            cloudSearch = new AmazonCloudSearchClient(creds, configuration);
+        return cloudSearch;
+    }
+
+    /**
+     * A client for the Cloud Search domain with this document endpoint.
+     */
+    public synchronized AmazonCloudSearchDomainAsyncClient cloudSearchDomain(String endpoint) {
+        return cloudSearchDomains.computeIfAbsent(endpoint, e -> {
+            AmazonCloudSearchDomainAsyncClient client = new AmazonCloudSearchDomainAsyncClient(creds, configuration);
+            client.setEndpoint(e);
+            return client;
+        });
+    }
+
+    /**
+     * Shuts down every client built so far, closing their connection pools and stopping the async clients' threads.
+     * Only once nothing will make another call on them.
+     */
+    public synchronized void shutdown() {
+        List<AmazonWebServiceClient> built = new ArrayList<>(Arrays.asList(
+            s3, sqs, rekognition, rekognitionAsync, dynamo, cloudSearch));
+        built.addAll(cloudSearchDomains.values());
+        for (AmazonWebServiceClient client : built) {
+            if (client != null)
+                client.shutdown(); // an async client's also shuts down its executor
+        }
+        if (rekognitionExecutor != null)
+            rekognitionExecutor.shutdownNow(); // in case the client didn't
+        s3 = null;
+        sqs = null;
+        rekognition = null;
+        rekognitionAsync = null;
+        rekognitionExecutor = null;
+        dynamo = null;
+        cloudSearch = null;
+        cloudSearchDomains.clear();
+    }
+
+    /**
+     * Reports connection pool use, by service, to the metrics: gauges of connections leased and available and of
+     * callers waiting for one, as of each service's latest call, a count of calls that found the pool exhausted, and
+     * a histogram of the time taken to get a connection.
+     * <p>
+     *     The SDK only reports these to a collector set for the whole JVM, so this covers every client, including
+     *     ones not built here. The last call wins if there are several sets of metrics.
+     * </p>
+     */
+    public void exportMetrics(Metrics metrics) {
+        AwsSdkMetrics.setMetricCollector(new PoolMetrics(metrics, maxConnections()));
+    }
+
+    private static class PoolMetrics extends MetricCollector {
+        private final Metrics metrics;
+        private final int maxConnections;
+        private final LatencyHistogram wait;
+        private final Map<String, Pool> pools = new ConcurrentHashMap<>(); // by service name
+
+        private final RequestMetricCollector requests = new RequestMetricCollector() {
+            @Override
+            public void collectMetrics(Request<?> request, Response<?> response) {
+                pools.computeIfAbsent(request.getServiceName(), Pool::new).update(request.getAWSRequestMetrics());
+            }
+        };
+
+        // the SDK times connection leases for the service collector only, without saying which service they're for
+        private final ServiceMetricCollector services = new ServiceMetricCollector() {
+            @Override
+            public void collectLatency(ServiceLatencyProvider latency) {
+                if (latency.getServiceMetricType() == AWSServiceMetrics.HttpClientGetConnectionTime)
+                    wait.record((long) (latency.getDurationMilli() * 1000000));
+            }
+
+            @Override
+            public void collectByteThroughput(ByteThroughputProvider throughput) {
+            }
+        };
+
+        PoolMetrics(Metrics metrics, int maxConnections) {
+            this.metrics = metrics;
+            this.maxConnections = maxConnections;
+            wait = metrics.histogram("http.connection.wait");
+        }
+
+        @Override
+        public boolean start() {
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            return true;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public RequestMetricCollector getRequestMetricCollector() {
+            return requests;
+        }
+
+        @Override
+        public ServiceMetricCollector getServiceMetricCollector() {
+            return services;
+        }
+
+        private class Pool {
+            private final AtomicLong leased = new AtomicLong();
+            private final AtomicLong available = new AtomicLong();
+            private final AtomicLong pending = new AtomicLong();
+            private final LongAdder exhausted;
+
+            Pool(String service) {
+                String prefix = "http." + service.replaceAll("[^A-Za-z0-9]", ""); // e.g. "Amazon S3"
+                metrics.gauge(prefix + ".leased", leased::get);
+                metrics.gauge(prefix + ".available", available::get);
+                metrics.gauge(prefix + ".pending", pending::get);
+                exhausted = metrics.counter(prefix + ".exhausted");
+            }
+
+            // the pool as the call's last attempt found it, before taking a connection
+            void update(AWSRequestMetrics request) {
+                long leasedNow = last(request, AWSRequestMetrics.Field.HttpClientPoolLeasedCount);
+                long availableNow = last(request, AWSRequestMetrics.Field.HttpClientPoolAvailableCount);
+                long pendingNow = last(request, AWSRequestMetrics.Field.HttpClientPoolPendingCount);
+                if (leasedNow < 0)
+                    return; // not recorded, e.g. failed before sending
+                leased.set(leasedNow);
+                available.set(availableNow);
+                pending.set(pendingNow);
+                if (pendingNow > 0 || (availableNow == 0 && leasedNow >= maxConnections))
+                    exhausted.increment();
+            }
+        }
+
+        // the SDK keeps these as counters, overwritten on each attempt
+        private static long last(AWSRequestMetrics request, AWSRequestMetrics.Field field) {
+            Number value = request == null ? null : request.getTimingInfo().getCounter(field.name());
+            return value == null ? -1 : value.longValue();
+        }
+    }
+}
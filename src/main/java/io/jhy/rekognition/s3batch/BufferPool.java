@@ -0,0 +1,143 @@
+package io.jhy.rekognition.s3batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of reusable byte buffers for holding images, so fetching them doesn't allocate a new multi-megabyte
+ * array per job. Taking a buffer waits while they're all in use, which also bounds the image bytes on the heap to
+ * roughly the number of buffers times the largest image.
+ * <p>
+ *     Buffers grow to fit the images read into them. One grown past the retain size is dropped when released, rather
+ *     than kept, so a few very large images don't pin their memory for the rest of the run.
+ * </p>
+ */
+class BufferPool {
+    private final Semaphore available;
+    private final Deque<Buffer> free = new ArrayDeque<>();
+    private final int initialBytes;
+    private final int retainBytes;
+
+    BufferPool(int buffers, int initialBytes, int retainBytes) {
+        this.available = new Semaphore(buffers);
+        this.initialBytes = initialBytes;
+        this.retainBytes = retainBytes;
+    }
+
+    /**
+     * Takes an empty buffer, waiting for one to be released if they're all in use. Close it to release it.
+     */
+    Buffer acquire() {
+        try {
+            available.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for an image buffer", e);
+        }
+        Buffer buffer;
+        synchronized (free) {
+            buffer = free.poll();
+        }
+        if (buffer == null)
+            buffer = new Buffer(initialBytes);
+        buffer.length = 0;
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    private void release(Buffer buffer) {
+        if (!buffer.inUse)
+            return; // already closed
+        buffer.inUse = false;
+        if (buffer.array.length <= retainBytes) {
+            synchronized (free) {
+                free.push(buffer);
+            }
+        }
+        available.release();
+    }
+
+    /**
+     * A growable byte array, written to as an OutputStream.
+     */
+    class Buffer extends OutputStream {
+        private byte[] array;
+        private int length;
+        private boolean inUse;
+
+        private Buffer(int size) {
+            array = new byte[size];
+        }
+
+        /**
+         * Replaces the contents with everything in the stream; sizeHint is the expected length, if known, or -1.
+         */
+        void readFrom(InputStream in, long sizeHint) throws IOException {
+            length = 0;
+            if (sizeHint > 0)
+                ensureCapacity(sizeHint);
+            int read;
+            while (true) {
+                if (length == array.length)
+                    ensureCapacity(length + 1L);
+                read = in.read(array, length, array.length - length);
+                if (read < 0)
+                    return;
+                length += read;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(length + 1L);
+            array[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity((long) length + len);
+            System.arraycopy(b, off, array, length, len);
+            length += len;
+        }
+
+        void clear() {
+            length = 0;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * The contents, without copying. Only valid until the buffer is next written or released.
+         */
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(array, 0, length);
+        }
+
+        InputStream asInputStream() {
+            return new ByteArrayInputStream(array, 0, length);
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void ensureCapacity(long needed) {
+            if (needed <= array.length)
+                return;
+            if (needed > Integer.MAX_VALUE - 8)
+                throw new IllegalArgumentException("Image too large to buffer: " + needed + " bytes");
+            long grown = Math.max(needed, Math.min(Integer.MAX_VALUE - 8, (long) array.length * 2));
+            array = Arrays.copyOf(array, (int) grown);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package io.jhy.rekognition.s3batch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive limit on the number of concurrent calls to a service (AIMD: additive increase, multiplicative decrease).
+ * While latency stays near the best seen, the limit creeps up by one for every {@code limit} calls that succeed. When
+ * latency climbs (requests are queueing up at the service) it is eased back, and when the service throttles it is
+ * halved, at most once per round trip so a burst of throttles only counts once.
+ * <p>
+ *     Permits can be taken blocking ({@link #acquire()}) or without blocking ({@link #acquireAsync()}); a limiter
+ *     should only be used in one of those styles.
+ * </p>
+ */
+class ConcurrencyLimiter {
+    private static final double latencyTolerance = 2.0; // latency this far over the baseline means we're queueing
+    private static final double latencyBackoff = 0.9;
+    private static final double throttleBackoff = 0.5;
+    private static final double smoothing = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private double baselineNanos = Double.MAX_VALUE; // best latency seen, drifting up slowly
+    private double smoothedNanos;
+    private long lastDecrease;
+    private boolean decreased;
+    private final AtomicLong numThrottles = new AtomicLong(0);
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    ConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * Waits for a permit. Must be followed by {@link #release()}.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Returns a future that completes when a permit has been granted. Must be followed by {@link #release()}.
+     */
+    CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        synchronized (this) {
+            if (waiters.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                permit.complete(null);
+            } else {
+                waiters.add(permit);
+            }
+        }
+        return permit;
+    }
+
+    void release() {
+        synchronized (this) {
+            inFlight--;
+            notifyAll();
+        }
+        grantWaiters();
+    }
+
+    // completes waiting async acquires while there's room. Done outside the lock, as completing runs the waiter's
+    // continuation on this thread.
+    private void grantWaiters() {
+        List<CompletableFuture<Void>> granted = null;
+        synchronized (this) {
+            while (!waiters.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                if (granted == null)
+                    granted = new ArrayList<>();
+                granted.add(waiters.poll());
+            }
+        }
+        if (granted != null) {
+            for (CompletableFuture<Void> permit : granted) {
+                permit.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Record a successful call, and its latency.
+     */
+    void onSuccess(long latencyNanos) {
+        adapt(latencyNanos);
+        grantWaiters();
+    }
+
+    private synchronized void adapt(long latencyNanos) {
+        if (baselineNanos == Double.MAX_VALUE) {
+            baselineNanos = latencyNanos;
+            smoothedNanos = latencyNanos;
+        }
+        // drift the baseline up slightly on slower samples, so one lucky fast call doesn't pin it forever
+        baselineNanos = Math.min(latencyNanos, baselineNanos + (latencyNanos - baselineNanos) * 0.001);
+        smoothedNanos += (latencyNanos - smoothedNanos) * smoothing;
+
+        if (smoothedNanos <= baselineNanos * latencyTolerance) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        } else {
+            decrease(latencyBackoff);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Record a throttled call.
+     */
+    synchronized void onThrottle() {
+        numThrottles.incrementAndGet();
+        int before = (int) limit;
+        decrease(throttleBackoff);
+        if ((int) limit != before)
+            Logger.Info("Throttled, reduced concurrency limit to %s.", (int) limit);
+    }
+
+    // cut the limit, but only once per smoothed round trip
+    private void decrease(double factor) {
+        long now = System.nanoTime();
+        if (decreased && now - lastDecrease < smoothedNanos)
+            return;
+        decreased = true;
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * factor);
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    synchronized int numWaiting() {
+        return waiters.size();
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    long numThrottles() {
+        return numThrottles.get();
+    }
+}
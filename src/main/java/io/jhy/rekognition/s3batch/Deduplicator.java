@@ -0,0 +1,158 @@
+package io.jhy.rekognition.s3batch;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Spots messages for images that are already being processed, or were processed recently, so the Processor doesn't
+ * do the work again. SQS delivers messages at least once, and overlapping scans enqueue the same image more than once.
+ * <p>
+ *     An image is known by a 64 bit murmur3 hash of its path, and its ETag when the message has one, so a changed
+ *     image isn't taken for a duplicate of the old one. Images in flight are held in a set, which is as big as the jobs
+ *     in flight are many. Completed images are remembered in two generations of open-addressed hash tables of the
+ *     hashes: new ones go in the current generation, and once it's a window old, or full, it becomes the previous one
+ *     and the old previous one is dropped. So an image is remembered for between one and two windows, unless more than
+ *     maxKeys / 2 complete within a window, and memory stays at 16 to 32 bytes per key however many images go by.
+ * </p>
+ */
+class Deduplicator {
+    private static HashFunction hash = Hashing.murmur3_128();
+
+    private final long windowNanos;
+    private final Set<Long> inFlight = new HashSet<>();
+    private LongSet current;
+    private LongSet previous;
+    private long currentStarted = System.nanoTime();
+
+    /**
+     * @param windowMillis how long completed images are remembered for, at least
+     * @param maxKeys      max number of completed images to remember
+     */
+    Deduplicator(long windowMillis, int maxKeys) {
+        windowNanos = windowMillis * 1000000;
+        current = new LongSet(Math.max(1, maxKeys / 2));
+        previous = new LongSet(Math.max(1, maxKeys / 2));
+    }
+
+    static long keyOf(ScanMessage job) {
+        String id = job.etag() != null ? job.path() + '\n' + job.etag() : job.path();
+        long key = hash.hashString(id, StandardCharsets.UTF_8).asLong();
+        return key != 0 ? key : 1; // 0 marks an empty slot
+    }
+
+    /**
+     * What {@link #tryStart(long)} found.
+     */
+    enum Seen {
+        /** Not seen, so now in flight. */
+        NEW,
+        /** Already in flight; the copy in flight may yet fail, so this one should be left for later. */
+        IN_FLIGHT,
+        /** Completed recently, so this copy can be dropped. */
+        COMPLETED
+    }
+
+    /**
+     * Marks the image as in flight, unless it's already in flight or was completed recently.
+     */
+    synchronized Seen tryStart(long key) {
+        rotateIfDue();
+        if (current.contains(key) || previous.contains(key))
+            return Seen.COMPLETED;
+        return inFlight.add(key) ? Seen.NEW : Seen.IN_FLIGHT;
+    }
+
+    /**
+     * The image is no longer in flight. If it was completed, it's remembered, so later copies are skipped; if it
+     * failed, a retry can start it again.
+     */
+    synchronized void finish(long key, boolean completed) {
+        inFlight.remove(key);
+        if (!completed)
+            return;
+        rotateIfDue();
+        if (current.isFull())
+            rotate();
+        current.add(key);
+    }
+
+    synchronized int numInFlight() {
+        return inFlight.size();
+    }
+
+    synchronized int numRemembered() {
+        return current.size() + previous.size();
+    }
+
+    private void rotateIfDue() {
+        if (System.nanoTime() - currentStarted >= windowNanos)
+            rotate();
+    }
+
+    private void rotate() {
+        LongSet dropped = previous;
+        previous = current;
+        dropped.clear();
+        current = dropped;
+        currentStarted = System.nanoTime();
+    }
+
+    // A set of non-zero longs, linear probing at a load of at most 1/2, without removal
+    private static class LongSet {
+        private final long[] slots;
+        private final int mask;
+        private final int capacity;
+        private int size;
+
+        LongSet(int capacity) {
+            this.capacity = capacity;
+            int length = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            slots = new long[length];
+            mask = length - 1;
+        }
+
+        boolean contains(long key) {
+            for (int i = index(key); ; i = (i + 1) & mask) {
+                if (slots[i] == key)
+                    return true;
+                if (slots[i] == 0)
+                    return false;
+            }
+        }
+
+        void add(long key) {
+            for (int i = index(key); ; i = (i + 1) & mask) {
+                if (slots[i] == key)
+                    return;
+                if (slots[i] == 0) {
+                    slots[i] = key;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        boolean isFull() {
+            return size >= capacity;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(slots, 0);
+            size = 0;
+        }
+
+        // the hash's low bits are as good as any, it's murmur3
+        private int index(long key) {
+            return (int) key & mask;
+        }
+    }
+}
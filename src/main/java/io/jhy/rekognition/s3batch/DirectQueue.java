@@ -0,0 +1,197 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.sqs.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands jobs from a Scanner to a Processor in the same JVM through a bounded in-memory queue, in place of SQS. When
+ * the queue is full the scanner's listing threads wait, so listing runs no faster than the processor can keep up.
+ * <p>
+ *     The processor takes jobs as messages without receipt handles from SQS, and reports back through
+ *     {@link #tracker()}. A job's onSent callback runs once it has been processed, not when it's taken, as nothing
+ *     persists it in between; so e.g. the scan index only records images that have actually been processed. A job that
+ *     fails is logged and dropped, as there's no queue to re-drive it from.
+ * </p>
+ * <p>
+ *     If the processor stops early, the queue is abandoned: the jobs waiting in it are dropped, the scanner stops
+ *     listing, and {@link #awaitSent()} still waits for the jobs the processor had already taken.
+ * </p>
+ */
+class DirectQueue implements JobQueue {
+    private static final long drainCheckNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final BlockingQueue<Message> queue;
+    private final Map<String, Runnable> onProcessed = new ConcurrentHashMap<>(); // by message id
+    private final AtomicLong nextId = new AtomicLong(0);
+    private final AtomicLong outstanding = new AtomicLong(0); // added, and not yet processed or failed
+    private final AtomicLong numProcessed = new AtomicLong(0);
+    private final AtomicLong numFailed = new AtomicLong(0);
+    private final AtomicLong numDropped = new AtomicLong(0);
+    private final long startTime = System.nanoTime();
+    private volatile boolean closed; // no more adds
+    private volatile boolean abandoned; // no more takes; adds are dropped
+
+    DirectQueue(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void add(String body) {
+        add(body, null);
+    }
+
+    /**
+     * Add a job, waiting for room in the queue.
+     */
+    @Override
+    public void add(String body, Runnable onSent) {
+        if (abandoned) {
+            numDropped.incrementAndGet();
+            return;
+        }
+        String id = Long.toString(nextId.incrementAndGet());
+        Message message = new Message().withMessageId(id).withBody(body);
+        if (onSent != null)
+            onProcessed.put(id, onSent);
+        outstanding.incrementAndGet();
+        try {
+            while (!queue.offer(message, 1, TimeUnit.SECONDS)) {
+                if (abandoned) {
+                    done(message);
+                    numDropped.incrementAndGet();
+                    return;
+                }
+            }
+            if (abandoned && queue.remove(message)) { // added after abandon() cleared the queue
+                done(message);
+                numDropped.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            done(message);
+            numDropped.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void awaitSent() throws InterruptedException {
+        synchronized (outstanding) {
+            while (outstanding.get() > 0) {
+                outstanding.wait(1000);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public long numLost() {
+        return numFailed.get() + numDropped.get();
+    }
+
+    @Override
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    @Override
+    public void logThroughput() {
+        double secs = (System.nanoTime() - startTime) / 1e9;
+        Logger.Info("Processed %s jobs directly (%.1f/s), %s failed, %s dropped.",
+            numProcessed.get(), numProcessed.get() / Math.max(secs, 0.001), numFailed.get(), numDropped.get());
+    }
+
+    /**
+     * Takes up to max jobs, waiting up to the timeout for the first one. Returns an empty list if there are none, at
+     * once if the queue is drained, or soon after it becomes drained while waiting.
+     */
+    List<Message> take(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        List<Message> messages = new ArrayList<>(max);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Message first = null;
+        while (first == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0 || isDrained())
+                return messages;
+            // in short waits, so the processor isn't left waiting out the timeout once the scanner has finished
+            first = queue.poll(Math.min(left, drainCheckNanos), TimeUnit.NANOSECONDS);
+        }
+        messages.add(first);
+        queue.drainTo(messages, max - 1);
+        return messages;
+    }
+
+    /**
+     * True once the scanner has finished and every job has been taken.
+     */
+    boolean isDrained() {
+        return closed && queue.isEmpty();
+    }
+
+    /**
+     * The processor has stopped (e.g. on reaching its -max); drop the jobs waiting, and anything added from now on.
+     */
+    void abandon() {
+        abandoned = true;
+        List<Message> dropped = new ArrayList<>(queue.size());
+        queue.drainTo(dropped);
+        numDropped.addAndGet(dropped.size());
+        for (Message message : dropped) {
+            done(message);
+        }
+    }
+
+    MessageTracker tracker() {
+        return new MessageTracker() {
+            @Override
+            public void received(Message message) {
+            }
+
+            @Override
+            public void delete(Message message) {
+                Runnable onSent = onProcessed.get(message.getMessageId());
+                if (onSent != null)
+                    onSent.run();
+                numProcessed.incrementAndGet();
+                done(message);
+            }
+
+            @Override
+            public void release(Message message) {
+                Logger.Info("Dropping failed job %s, there's no queue to re-drive it from.", message.getBody());
+                numFailed.incrementAndGet();
+                done(message);
+            }
+
+            @Override
+            public boolean isExpired(Message message) {
+                return false; // never handed to anyone else
+            }
+
+            @Override
+            public void close() {
+                logThroughput();
+            }
+        };
+    }
+
+    private void done(Message message) {
+        onProcessed.remove(message.getMessageId());
+        if (outstanding.decrementAndGet() == 0) {
+            synchronized (outstanding) {
+                outstanding.notifyAll();
+            }
+        }
+    }
+}
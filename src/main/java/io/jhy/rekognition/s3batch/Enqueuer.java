@@ -0,0 +1,230 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs message bodies into SendMessageBatch calls (10 entries each, the SQS max) and sends them from a dedicated,
+ * bounded pool of sender threads. The caller (the bucket lister) just adds bodies and carries on to the next page, so
+ * listing and enqueueing overlap. If the senders fall behind, the lister runs the send itself, which slows listing
+ * down to the rate SQS can take.
+ * <p>
+ *     Only the entries that fail within a batch are retried; entries that fail with a sender fault (e.g. a malformed
+ *     body) are not retryable and are logged and dropped. An optional callback per message is run once it is on the
+ *     queue.
+ * </p>
+ */
+public class Enqueuer implements JobQueue {
+    private static final int batchSize = 10;
+    private static final int maxAttempts = 5;
+    private static final long backoffMillis = 100;
+
+    private final AmazonSQSClient sqs;
+    private final String queueUrl;
+    private final ThreadPoolExecutor senders;
+    private final AtomicLong numSent = new AtomicLong(0);
+    private final AtomicLong numRequests = new AtomicLong(0);
+    private final AtomicLong numFailed = new AtomicLong(0);
+    private final AtomicInteger outstanding = new AtomicInteger(0); // batches submitted but not yet sent
+    private final long startTime = System.nanoTime();
+    private List<Entry> pending = new ArrayList<>(batchSize);
+
+    public Enqueuer(AmazonSQSClient sqs, String queueUrl, int numSenders) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        senders = new ThreadPoolExecutor(
+            numSenders, numSenders, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(numSenders * 2, false),
+            new CallerRunsPolicy() // holds the lister back when the senders are saturated
+        );
+    }
+
+    /**
+     * Add a message body to the current batch. Sends the batch when it is full.
+     */
+    @Override
+    public void add(String body) {
+        add(body, null);
+    }
+
+    /**
+     * Add a message body to the current batch, and run the callback (on a sender thread) once it has been sent.
+     */
+    @Override
+    public void add(String body, Runnable onSent) {
+        List<Entry> full = null;
+        synchronized (this) {
+            pending.add(new Entry(body, onSent));
+            if (pending.size() == batchSize) {
+                full = pending;
+                pending = new ArrayList<>(batchSize);
+            }
+        }
+        if (full != null)
+            submit(full);
+    }
+
+    /**
+     * Send any partially filled batch now.
+     */
+    public void flush() {
+        List<Entry> partial;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;
+            partial = pending;
+            pending = new ArrayList<>(batchSize);
+        }
+        submit(partial);
+    }
+
+    /**
+     * Flush the last batch and wait for all sends to complete.
+     */
+    @Override
+    public void close() {
+        flush();
+        senders.shutdown();
+        try {
+            while (!senders.awaitTermination(10, TimeUnit.SECONDS)) {
+                Logger.Debug("Waiting for %s pending SQS batches to send.", senders.getQueue().size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Flush, and wait until every batch submitted so far has been sent (or has failed out of its retries). Used to
+     * make sure everything listed up to a checkpoint is on the queue before the checkpoint is committed.
+     */
+    @Override
+    public void awaitSent() throws InterruptedException {
+        flush();
+        synchronized (outstanding) {
+            while (outstanding.get() > 0) {
+                outstanding.wait(1000);
+            }
+        }
+    }
+
+    private void submit(List<Entry> batch) {
+        outstanding.incrementAndGet();
+        senders.execute(() -> {
+            try {
+                send(batch);
+            } finally {
+                if (outstanding.decrementAndGet() == 0) {
+                    synchronized (outstanding) {
+                        outstanding.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void send(List<Entry> batch) {
+        // entry ids are their index in the original batch, so failures can be mapped back on retries
+        List<SendMessageBatchRequestEntry> all = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            all.add(new SendMessageBatchRequestEntry(Integer.toString(i), batch.get(i).body));
+        }
+        List<SendMessageBatchRequestEntry> entries = all;
+
+        for (int attempt = 1; !entries.isEmpty(); attempt++) {
+            SendMessageBatchResult result;
+            try {
+                numRequests.incrementAndGet();
+                result = sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts) {
+                    numFailed.addAndGet(entries.size());
+                    Logger.Info("Failed to send batch of %s messages after %s attempts: %s", entries.size(), attempt, e);
+                    return;
+                }
+                backoff(attempt);
+                continue;
+            }
+            numSent.addAndGet(result.getSuccessful().size());
+            for (SendMessageBatchResultEntry sent : result.getSuccessful()) {
+                Runnable onSent = batch.get(Integer.parseInt(sent.getId())).onSent;
+                if (onSent != null)
+                    onSent.run();
+            }
+
+            // retry just the failed entries
+            List<SendMessageBatchRequestEntry> retry = new ArrayList<>(result.getFailed().size());
+            for (BatchResultErrorEntry failed : result.getFailed()) {
+                SendMessageBatchRequestEntry entry = all.get(Integer.parseInt(failed.getId()));
+                if (Boolean.TRUE.equals(failed.isSenderFault()) || attempt >= maxAttempts) {
+                    numFailed.incrementAndGet();
+                    Logger.Info("Failed to send %s: %s %s", entry.getMessageBody(), failed.getCode(), failed.getMessage());
+                } else {
+                    retry.add(entry);
+                }
+            }
+            if (!retry.isEmpty())
+                backoff(attempt);
+            entries = retry;
+        }
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(backoffMillis << (attempt - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long numSent() {
+        return numSent.get();
+    }
+
+    @Override
+    public long numLost() {
+        return numFailed.get();
+    }
+
+    @Override
+    public boolean isAbandoned() {
+        return false;
+    }
+
+    long numFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * Log the number of messages and requests sent, and their rate since this enqueuer was created.
+     */
+    @Override
+    public void logThroughput() {
+        double secs = Math.max((System.nanoTime() - startTime) / 1e9, 0.001);
+        Logger.Info("Enqueued %s messages (%s failed) in %s requests over %.1fs: %.0f msgs/s, %.0f requests/s.",
+            numSent.get(), numFailed.get(), numRequests.get(), secs, numSent.get() / secs, numRequests.get() / secs);
+    }
+
+    private static class Entry {
+        final String body;
+        final Runnable onSent;
+
+        Entry(String body, Runnable onSent) {
+            this.body = body;
+            this.onSent = onSent;
+        }
+    }
+}
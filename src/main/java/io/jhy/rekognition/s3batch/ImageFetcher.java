@@ -0,0 +1,148 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.rekognition.model.ImageTooLargeException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads images from S3 into pooled buffers, to send to Rekognition as bytes rather than as S3 references. The image
+ * is read once and the same buffer serves every Rekognition call made for it.
+ * <p>
+ *     Rekognition takes at most 5MB of image bytes, a third of what it reads from S3 itself. Images over the
+ *     downscale size are decoded, scaled down and re-encoded as JPEG in place, in the same buffer, until they fit.
+ *     Decoding allocates the full size image on the heap, several bytes a pixel however well it was compressed, so
+ *     the image's dimensions are read from its header first and images over the pixel limit are skipped, and only so
+ *     many images are decoded at once.
+ * </p>
+ */
+class ImageFetcher {
+    static final long maxRequestBytes = 5 * 1024 * 1024; // Rekognition's limit for image bytes
+    private static final int minDimension = 80; // Rekognition's minimum image height and width
+    private static final int maxScaleAttempts = 4;
+
+    static {
+        ImageIO.setUseCache(false); // encode in memory, not through a temp file
+    }
+
+    private final AmazonS3Client s3;
+    private final BufferPool pool;
+    private final long downscaleBytes;
+    private final long maxPixels;
+    private final Semaphore decodes;
+
+    /**
+     * @param maxPixels the most pixels an image may have to be decoded for downscaling
+     * @param maxDecodes the number of images that may be decoded at once
+     */
+    ImageFetcher(AmazonS3Client s3, BufferPool pool, long downscaleBytes, long maxPixels, int maxDecodes) {
+        this.s3 = s3;
+        this.pool = pool;
+        this.downscaleBytes = downscaleBytes;
+        this.maxPixels = maxPixels;
+        this.decodes = new Semaphore(maxDecodes);
+    }
+
+    /**
+     * The image, downscaled if need be. Close the buffer once done with it.
+     */
+    BufferPool.Buffer fetch(String bucket, String key, long maxBytes) {
+        BufferPool.Buffer buffer = pool.acquire();
+        try {
+            try (S3Object object = s3.getObject(bucket, key); S3ObjectInputStream in = object.getObjectContent()) {
+                long size = object.getObjectMetadata().getContentLength();
+                if (size > maxBytes) {
+                    in.abort(); // don't read the rest just to close the connection cleanly
+                    throw new ImageTooLargeException("Image is " + size + " bytes, over the limit of " + maxBytes);
+                }
+                buffer.readFrom(in, size);
+            }
+            if (buffer.length() > downscaleBytes)
+                downscale(buffer, bucket + "/" + key);
+            return buffer;
+        } catch (IOException e) {
+            buffer.close();
+            throw new IllegalStateException("Could not read " + bucket + "/" + key, e);
+        } catch (RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+    }
+
+    private void downscale(BufferPool.Buffer buffer, String path) throws IOException {
+        try {
+            decodes.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting to decode " + path, e);
+        }
+        try {
+            BufferedImage image = decode(buffer, path);
+            if (image == null) {
+                Logger.Info("Can't decode %s to downscale it, sending as is.", path);
+                return;
+            }
+            downscale(buffer, path, image);
+        } finally {
+            decodes.release();
+        }
+    }
+
+    // the image, or null if no reader knows its format; checks its size from the header before decoding it
+    private BufferedImage decode(BufferPool.Buffer buffer, String path) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(buffer.asInputStream())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > maxPixels)
+                    throw new ImageTooLargeException("Image is " + reader.getWidth(0) + "x" + reader.getHeight(0)
+                        + ", too many pixels to downscale");
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Encoded size goes roughly with the number of pixels, so each attempt scales both sides by the square root of
+    // the size ratio, with some margin.
+    private void downscale(BufferPool.Buffer buffer, String path, BufferedImage image) throws IOException {
+
+        int originalBytes = buffer.length();
+        double scale = 1;
+        for (int attempt = 1; attempt <= maxScaleAttempts && buffer.length() > downscaleBytes; attempt++) {
+            scale *= Math.sqrt((double) downscaleBytes / buffer.length()) * 0.9;
+            int width = Math.max(minDimension, (int) (image.getWidth() * scale));
+            int height = Math.max(minDimension, (int) (image.getHeight() * scale));
+
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = scaled.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(image, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+
+            buffer.clear();
+            if (!ImageIO.write(scaled, "jpg", buffer))
+                throw new IOException("No JPEG writer available");
+        }
+        Logger.Debug("Downscaled %s from %s to %s bytes (%.0f%% of %sx%s).", path, originalBytes, buffer.length(),
+            scale * 100, image.getWidth(), image.getHeight());
+    }
+}
@@ -0,0 +1,193 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.codec.Charsets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the objects listed in an S3 Inventory report from local disk, as an alternative to listing the bucket. Takes
+ * the report's manifest.json and reads the CSV (or CSV.gz) data files it names, in parallel, one row at a time, so
+ * memory use doesn't grow with the size of the inventory.
+ * <p>
+ *     Data files are looked for next to the manifest, in a data/ directory next to it, or in the data/ directory one
+ *     level up (the layout S3 writes the report in).
+ * </p>
+ */
+class InventoryReader {
+    private static final Gson gson = new Gson();
+
+    private final Path manifestFile;
+    private final Manifest manifest;
+    private final int bucketCol, keyCol, sizeCol, modifiedCol, etagCol, latestCol, deleteMarkerCol;
+
+    InventoryReader(Path manifestFile) throws IOException {
+        this.manifestFile = manifestFile;
+        try (Reader reader = Files.newBufferedReader(manifestFile, Charsets.UTF_8)) {
+            manifest = gson.fromJson(reader, Manifest.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Could not parse inventory manifest " + manifestFile, e);
+        }
+        if (manifest == null || manifest.files == null || manifest.fileSchema == null)
+            throw new IOException("Incomplete inventory manifest " + manifestFile);
+        if (manifest.fileFormat != null && !"CSV".equalsIgnoreCase(manifest.fileFormat))
+            throw new IOException("Unsupported inventory format " + manifest.fileFormat + ", only CSV can be read");
+
+        List<String> schema = new ArrayList<>();
+        for (String col : manifest.fileSchema.split(",")) {
+            schema.add(col.trim());
+        }
+        bucketCol = schema.indexOf("Bucket");
+        keyCol = schema.indexOf("Key");
+        sizeCol = schema.indexOf("Size");
+        modifiedCol = schema.indexOf("LastModifiedDate");
+        etagCol = schema.indexOf("ETag");
+        latestCol = schema.indexOf("IsLatest");
+        deleteMarkerCol = schema.indexOf("IsDeleteMarker");
+        if (bucketCol < 0 || keyCol < 0)
+            throw new IOException("Inventory schema has no Bucket or Key: " + manifest.fileSchema);
+    }
+
+    int numFiles() {
+        return manifest.files.size();
+    }
+
+    /**
+     * Read every data file, with up to this many files at once, passing each object to the consumer. The consumer
+     * returns false to stop reading (e.g. when -max has been hit).
+     */
+    void read(int threads, Predicate<S3ObjectSummary> consumer) throws IOException {
+        ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, numFiles())));
+        try {
+            List<Future<?>> results = new ArrayList<>(numFiles());
+            for (ManifestFile file : manifest.files) {
+                results.add(readers.submit(() -> {
+                    readFile(locate(file.key), consumer);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private Path locate(String key) throws IOException {
+        String name = key.substring(key.lastIndexOf('/') + 1);
+        Path dir = manifestFile.toAbsolutePath().getParent();
+        Path[] candidates = {dir.resolve(name), dir.resolve("data").resolve(name), dir.resolveSibling("data").resolve(name)};
+        for (Path candidate : candidates) {
+            if (Files.isRegularFile(candidate))
+                return candidate;
+        }
+        throw new IOException("Could not find inventory data file " + name + " near " + manifestFile);
+    }
+
+    private void readFile(Path file, Predicate<S3ObjectSummary> consumer) throws IOException {
+        Logger.Debug("Reading inventory file %s", file);
+        InputStream in = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(".gz"))
+            in = new GZIPInputStream(in, 64 * 1024);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8), 64 * 1024)) {
+            List<String> row = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                splitCsv(line, row);
+                S3ObjectSummary object = toSummary(row);
+                if (object != null && !consumer.test(object))
+                    return;
+            }
+        }
+    }
+
+    // maps the row to an object, or null if it isn't a current object (deleted, or an old version)
+    private S3ObjectSummary toSummary(List<String> row) throws UnsupportedEncodingException {
+        if (row.size() <= keyCol || row.size() <= bucketCol)
+            return null;
+        if (latestCol >= 0 && latestCol < row.size() && "false".equals(row.get(latestCol)))
+            return null;
+        if (deleteMarkerCol >= 0 && deleteMarkerCol < row.size() && "true".equals(row.get(deleteMarkerCol)))
+            return null;
+
+        S3ObjectSummary object = new S3ObjectSummary();
+        object.setBucketName(row.get(bucketCol));
+        object.setKey(URLDecoder.decode(row.get(keyCol), "UTF-8")); // keys in inventory CSVs are url encoded
+        if (sizeCol >= 0 && sizeCol < row.size() && !row.get(sizeCol).isEmpty())
+            object.setSize(Long.parseLong(row.get(sizeCol)));
+        if (modifiedCol >= 0 && modifiedCol < row.size() && !row.get(modifiedCol).isEmpty())
+            object.setLastModified(Date.from(Instant.parse(row.get(modifiedCol))));
+        if (etagCol >= 0 && etagCol < row.size() && !row.get(etagCol).isEmpty())
+            object.setETag(row.get(etagCol));
+        return object;
+    }
+
+    // splits a CSV line into the reused row list. Fields may be quoted, with "" as an escaped quote.
+    static void splitCsv(String line, List<String> row) {
+        row.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        row.add(field.toString());
+    }
+
+    // model of manifest.json. GSON inspects the fields.
+    private static class Manifest {
+        private String fileFormat;
+        private String fileSchema;
+        private List<ManifestFile> files;
+    }
+
+    private static class ManifestFile {
+        private String key;
+    }
+}
@@ -0,0 +1,77 @@
+package io.jhy.rekognition.s3batch;
+
+/**
+ * Orders the jobs waiting in the Processor's prefetch buffer for a worker, so a job from a higher priority or weight
+ * queue doesn't wait behind everything a lower one prefetched before it arrived. Wrap each job with
+ * {@link #job(int, Runnable)} and hand it to an executor on a PriorityBlockingQueue.
+ * <p>
+ *     With strict priority, jobs run in the order of their queues, and in the order they came within a queue.
+ *     Otherwise it's the same stride scheduling as the {@link SlotScheduler}: each job gets its queue's pass, which is
+ *     then advanced by 1/weight, and the lowest pass runs first. A queue with nothing waiting is moved up to the pass
+ *     of the last job started, so it doesn't jump ahead of everything for the time it had nothing to do.
+ * </p>
+ */
+class JobOrder {
+    private final int[] weights;
+    private final boolean strict;
+    private final double[] pass;
+    private final int[] waiting; // jobs waiting, by queue
+    private double now; // the pass of the last job started
+    private long sequence;
+
+    /**
+     * @param weights relative shares of the workers, by queue
+     * @param strict whether to run the earliest listed queue's jobs first, ignoring the weights
+     */
+    JobOrder(int[] weights, boolean strict) {
+        this.weights = weights.clone();
+        this.strict = strict;
+        this.pass = new double[weights.length];
+        this.waiting = new int[weights.length];
+    }
+
+    /**
+     * The job, to run in its queue's turn.
+     */
+    synchronized Job job(int queue, Runnable task) {
+        if (waiting[queue]++ == 0)
+            pass[queue] = Math.max(pass[queue], now);
+        Job job = new Job(queue, pass[queue], sequence++, task);
+        pass[queue] += 1.0 / weights[queue];
+        return job;
+    }
+
+    private synchronized void started(Job job) {
+        waiting[job.queue]--;
+        now = Math.max(now, job.pass);
+    }
+
+    class Job implements Runnable, Comparable<Job> {
+        private final int queue;
+        private final double pass;
+        private final long sequence;
+        private final Runnable task;
+
+        private Job(int queue, double pass, long sequence, Runnable task) {
+            this.queue = queue;
+            this.pass = pass;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            started(this);
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (strict && queue != other.queue)
+                return Integer.compare(queue, other.queue);
+            if (!strict && pass != other.pass)
+                return Double.compare(pass, other.pass);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package io.jhy.rekognition.s3batch;
+
+/**
+ * Where the Scanner puts the paths of the images to process: an SQS queue ({@link Enqueuer}), or straight to a
+ * Processor in the same JVM ({@link DirectQueue}).
+ */
+interface JobQueue {
+    void add(String body);
+
+    /**
+     * Add a job, running onSent once it has been handed over for good.
+     */
+    void add(String body, Runnable onSent);
+
+    /**
+     * Waits until every job added so far has been handed over (or has failed).
+     */
+    void awaitSent() throws InterruptedException;
+
+    /**
+     * No more jobs will be added.
+     */
+    void close();
+
+    /**
+     * The number of jobs added that will never be handed over, as they were dropped or failed.
+     */
+    long numLost();
+
+    /**
+     * True once nothing will take any more jobs, e.g. the processor they go to has stopped, so there's no point adding
+     * them.
+     */
+    boolean isAbandoned();
+
+    void logThroughput();
+}
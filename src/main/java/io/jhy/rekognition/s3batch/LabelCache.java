@@ -0,0 +1,281 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.rekognition.model.Label;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.commons.codec.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Remembers the labels detected for each image, keyed by its content (the S3 ETag), the minimum confidence asked
+ * for and whether moderation labels were, so the same image isn't sent to Rekognition twice: not when it's copied
+ * under several keys, and not when a job is re-driven after a later step failed.
+ * <p>
+ *     Recently used results are held in an LRU map on the heap. All results are also appended to a log file on disk,
+ *     found through a {@link MappedLongMap} from a hash of the cache key to the record's offset, so they outlive the
+ *     process and don't take up heap.
+ * </p>
+ * <p>
+ *     The disk tier holds at most maxKeys results. When it's full, the log is compacted: the newer half of the results
+ *     are copied to a new log and index, which replace the old ones, and the older half are forgotten. A result is only
+ *     appended once, however many jobs miss on it.
+ * </p>
+ */
+class LabelCache implements Closeable {
+    private static HashFunction hash = Hashing.murmur3_128();
+    private static Charset charset = Charsets.UTF_8;
+
+    private final float minConfidence;
+    private final boolean moderation;
+    private final Map<String, List<Label>> recent;
+    private final Path dir;
+    private final long maxKeys;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); // written under the write lock, so is compaction
+    private MappedLongMap index; // key hash -> log offset + 1
+    private FileChannel log;
+    private long logSize;
+    private final AtomicLong numMemoryHits = new AtomicLong(0);
+    private final AtomicLong numDiskHits = new AtomicLong(0);
+    private final AtomicLong numMisses = new AtomicLong(0);
+
+    /**
+     * @param maxKeys    max number of results to keep on disk
+     * @param moderation whether the labels include moderation labels, which are cached separately
+     */
+    LabelCache(Path dir, int memoryEntries, long maxKeys, float minConfidence, boolean moderation)
+        throws IOException {
+        this.dir = dir;
+        this.maxKeys = Math.max(2, maxKeys);
+        this.minConfidence = minConfidence;
+        this.moderation = moderation;
+        recent = Collections.synchronizedMap(new LinkedHashMap<String, List<Label>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Label>> eldest) {
+                return size() > memoryEntries;
+            }
+        });
+
+        Files.createDirectories(dir);
+        index = MappedLongMap.open(dir.resolve("labels.idx"), this.maxKeys);
+        log = FileChannel.open(dir.resolve("labels.log"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logSize = log.size();
+        Logger.Info("Opened label cache %s with %s results.", dir, index.size());
+    }
+
+    /**
+     * The labels for this image content, or null if they aren't known.
+     */
+    List<Label> get(String etag) {
+        String key = cacheKey(etag);
+        List<Label> labels = recent.get(key);
+        if (labels != null) {
+            numMemoryHits.incrementAndGet();
+            return labels;
+        }
+
+        lock.readLock().lock();
+        try {
+            long offset = index.get(keyHash(key), 0);
+            if (offset != 0)
+                labels = read(offset - 1, key);
+        } catch (IOException e) {
+            Logger.Info("Could not read label cache record for %s: %s", etag, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (labels == null) {
+            numMisses.incrementAndGet();
+            return null;
+        }
+        numDiskHits.incrementAndGet();
+        recent.put(key, labels);
+        return labels;
+    }
+
+    void put(String etag, List<Label> labels) {
+        String key = cacheKey(etag);
+        recent.put(key, labels);
+        long keyHash = keyHash(key);
+        lock.writeLock().lock();
+        try {
+            if (index.get(keyHash, 0) != 0)
+                return; // another job missed on it too, and got there first
+            if (index.size() >= maxKeys)
+                compact();
+            byte[] record = encode(key, labels);
+            write(log, ByteBuffer.wrap(record), logSize);
+            index.put(keyHash, logSize + 1);
+            logSize += record.length;
+        } catch (IOException e) {
+            Logger.Info("Could not write label cache record for %s: %s", etag, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    String stats() {
+        long hits = numMemoryHits.get() + numDiskHits.get();
+        long total = hits + numMisses.get();
+        return String.format("Label cache hit %s%% (%s from memory, %s from disk), missed %s.",
+            total == 0 ? 0 : hits * 100 / total, numMemoryHits.get(), numDiskHits.get(), numMisses.get());
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            index.force();
+            index.close();
+            log.force(false);
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Logger.Info("%s", stats());
+    }
+
+    // Copies the newer half of the results to a new log and index, then swaps them in over the old ones. The log is in
+    // the order results were added, so the newer half is the records toward its end that the index still points to:
+    // one pass counts them and a second copies them, so nothing is held per result. A crash between the two renames
+    // leaves an index pointing into the wrong log; read() checks each record's key and bounds, so that only costs
+    // misses.
+    private void compact() throws IOException {
+        long started = System.nanoTime();
+        long numLive = copyLive(Long.MAX_VALUE, null, null);
+
+        Path logFile = dir.resolve("labels.log");
+        Path indexFile = dir.resolve("labels.idx");
+        Path newLogFile = dir.resolve("labels.log.compact");
+        Path newIndexFile = dir.resolve("labels.idx.compact");
+        Files.deleteIfExists(newLogFile);
+        Files.deleteIfExists(newIndexFile);
+        MappedLongMap newIndex = MappedLongMap.open(newIndexFile, maxKeys);
+        FileChannel newLog = FileChannel.open(newLogFile,
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        copyLive(Math.max(0, numLive - maxKeys / 2), newLog, newIndex);
+        newLog.force(false);
+        newIndex.force();
+
+        // the open channel and mappings follow the files through the renames
+        index.close();
+        log.close();
+        Files.move(newLogFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(newIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Logger.Info("Compacted label cache %s from %s to %s results in %sms.", dir, numLive, newIndex.size(),
+            (System.nanoTime() - started) / 1000000);
+        index = newIndex;
+        log = newLog;
+        logSize = newLog.size();
+    }
+
+    // Walks the records the index still points to, in log order, and appends all but the first skip of them to the
+    // new log and index, if given. Returns how many there are.
+    private long copyLive(long skip, FileChannel newLog, MappedLongMap newIndex) throws IOException {
+        long numLive = 0;
+        long newSize = 0;
+        for (long offset = 0; offset < logSize; ) {
+            byte[] record;
+            try {
+                record = readRecord(offset);
+            } catch (IOException e) {
+                break; // a record cut short by a crash; anything after it is lost
+            }
+            long keyHash = keyHash(new DataInputStream(new ByteArrayInputStream(record)).readUTF());
+            if (index.get(keyHash, 0) == offset + 1 && numLive++ >= skip && newLog != null) {
+                ByteBuffer buf = ByteBuffer.allocate(4 + record.length);
+                buf.putInt(4 + record.length).put(record).flip();
+                write(newLog, buf, newSize);
+                newIndex.put(keyHash, newSize + 1);
+                newSize += buf.capacity();
+            }
+            offset += 4 + record.length;
+        }
+        return numLive;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+    }
+
+    private String cacheKey(String etag) {
+        return etag + "@" + minConfidence + (moderation ? "+moderation" : "");
+    }
+
+    // 0 is reserved in the map
+    private static long keyHash(String key) {
+        long h = hash.hashString(key, charset).asLong();
+        return h != 0 ? h : 1;
+    }
+
+    // record: length, key (checked on read, in case of a hash collision), label count, then name and confidence each
+    private static byte[] encode(String key, List<Label> labels) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + labels.size() * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below
+        out.writeUTF(key);
+        out.writeShort(labels.size());
+        for (Label label : labels) {
+            out.writeUTF(label.getName());
+            out.writeFloat(label.getConfidence());
+        }
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length);
+        return record;
+    }
+
+    private List<Label> read(long offset, String key) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecord(offset)));
+        if (!key.equals(in.readUTF()))
+            return null;
+        int count = in.readUnsignedShort();
+        List<Label> labels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            labels.add(new Label().withName(in.readUTF()).withConfidence(in.readFloat()));
+        }
+        return labels;
+    }
+
+    // the record at the offset, after its length
+    private byte[] readRecord(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        int size = length.getInt(0);
+        if (size < 4 || offset + size > logSize)
+            throw new IOException("Label cache record at " + offset + " is corrupt");
+        ByteBuffer record = ByteBuffer.allocate(size - 4);
+        readFully(record, offset + 4);
+        return record.array();
+    }
+
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (log.read(buf, offset + buf.position()) < 0)
+                throw new IOException("Label cache log is truncated");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package io.jhy.rekognition.s3batch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies into log-linear buckets: each power of two of microseconds is split into 8, so a percentile read
+ * back is within 12.5% of the true value. Recording is a few atomic adds with no allocation or locking, cheap enough
+ * to time every call.
+ * <p>
+ *     Counts are cumulative from the start of the run, which is what a scraper expects; the percentiles in the log
+ *     summary are over the whole run too.
+ * </p>
+ */
+public class LatencyHistogram {
+    private static final int subBits = 3;
+    private static final int subBuckets = 1 << subBits;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * subBuckets);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    /**
+     * Records the time since start, from System.nanoTime().
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumMicros() {
+        return sumMicros.sum();
+    }
+
+    public long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * The latency at this quantile (0 to 1) in micros, as the top of the bucket it falls in.
+     */
+    public long percentileMicros(double quantile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(lowerBound(i + 1) - 1, maxMicros());
+        }
+        return maxMicros();
+    }
+
+    // values below subBuckets get a bucket each; above, the power of two picks a row and the next bits the column
+    static int index(long micros) {
+        if (micros < subBuckets)
+            return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - subBits;
+        return ((shift + 1) << subBits) + (int) ((micros >>> shift) - subBuckets);
+    }
+
+    static long lowerBound(int index) {
+        if (index < subBuckets)
+            return index;
+        int shift = (index >>> subBits) - 1;
+        return ((long) (index & (subBuckets - 1)) + subBuckets) << shift;
+    }
+}
@@ -1,11 +1,41 @@
 package io.jhy.rekognition.s3batch;
 
+import java.io.PrintStream;
+
 public class Logger {
+    // on unless run with -Ds3batch.debug=false
+    private static volatile boolean debug = !"false".equals(System.getProperty("s3batch.debug"));
+    private static volatile boolean stderr;
+
     public static void Info(String msg, Object... args) {
-        System.out.println(String.format(msg, args));
+        out().println(String.format(msg, args));
     }
 
     public static void Debug(String msg, Object... args) {
-        System.out.println(String.format(msg, args));
+        if (debug)
+            out().println(String.format(msg, args));
+    }
+
+    /**
+     * Check before building an expensive debug message.
+     */
+    public static boolean isDebug() {
+        return debug;
+    }
+
+    public static void setDebug(boolean on) {
+        debug = on;
+    }
+
+    /**
+     * Log to stderr rather than stdout, for commands whose results are written to stdout.
+     */
+    public static void setStderr(boolean on) {
+        stderr = on;
+    }
+
+    // looked up on each line rather than kept, so System.setOut still applies
+    private static PrintStream out() {
+        return stderr ? System.err : System.out;
     }
 }
@@ -1,5 +1,16 @@
 package io.jhy.rekognition.s3batch;
 
+import com.amazonaws.services.rekognition.model.Label;
+import io.jhy.rekognition.s3batch.processor.LabelIndex;
+import io.jhy.rekognition.s3batch.processor.LabelLogReader;
+import io.jhy.rekognition.s3batch.processor.LabelQuery;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 public class Main {
@@ -10,6 +21,12 @@ public class Main {
                 Scanner.main(Arrays.copyOfRange(args, 1, args.length));
             } else if ("-process".equals(first)) {
                 Processor.main(Arrays.copyOfRange(args, 1, args.length));
+            } else if ("-direct".equals(first)) {
+                direct(Arrays.copyOfRange(args, 1, args.length));
+            } else if ("-readlog".equals(first) && args.length == 2) {
+                readLog(args[1]);
+            } else if ("-query".equals(first) && (args.length == 3 || args.length == 4)) {
+                query(args[1], args[2], args.length == 4 ? Integer.parseInt(args[3]) : -1);
             } else {
                 printHelp();
             }
@@ -18,7 +35,89 @@ public class Main {
         }
     }
 
+    // -direct <scan args> -- <process args>: scans straight into a processor in this JVM, without SQS
+    private static void direct(String[] args) {
+        int split = Arrays.asList(args).indexOf("--");
+        String[] scanArgs = split < 0 ? args : Arrays.copyOfRange(args, 0, split);
+        String[] processArgs = split < 0 ? new String[0] : Arrays.copyOfRange(args, split + 1, args.length);
+
+        ScanConfig scanOpt = new ScanConfig(scanArgs, false);
+        ProcessorConfig processOpt = new ProcessorConfig(processArgs, false);
+        if (scanOpt.needHelp() || processOpt.needHelp()) {
+            System.out.println("Usage: -direct <scan args> -- <process args>");
+            scanOpt.printHelp();
+            processOpt.printHelp();
+            return;
+        }
+
+        if (processOpt.bytes())
+            scanOpt.defaultMaxSize(processOpt.maxFetch()); // rather than drop what the processor can downscale
+
+        // one set of clients, so the scanner's listing and the processor's S3 calls share a connection pool
+        AwsClients clients = AwsClients.forProfile(processOpt.profile(), Integer.parseInt(processOpt.concurrency()));
+        DirectQueue queue = new DirectQueue(Integer.parseInt(processOpt.directQueue()));
+        Processor processor = new Processor(processOpt, queue, clients, null);
+        Thread processing = new Thread(processor::start, "processor");
+        processing.start();
+
+        Scanner scanner = new Scanner(scanOpt, queue, clients);
+        try {
+            scanner.scanBucket();
+        } finally {
+            queue.close();
+        }
+        try {
+            processing.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        clients.shutdown();
+    }
+
+    // -readlog <dir>: prints a label log as tab separated path and name:confidence list lines
+    private static void readLog(String dir) {
+        Logger.setStderr(true); // keep stdout to the lines
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536));
+        StringBuilder line = new StringBuilder(256);
+        try {
+            LabelLogReader.read(Paths.get(dir), (path, labels) -> {
+                line.setLength(0);
+                line.append(path).append('\t');
+                for (int i = 0; i < labels.size(); i++) {
+                    Label label = labels.get(i);
+                    if (i > 0)
+                        line.append(',');
+                    line.append(label.getName()).append(':').append(label.getConfidence().intValue());
+                }
+                out.println(line);
+            });
+        } catch (IOException e) {
+            Logger.Info("Could not read label log %s: %s", dir, e);
+        }
+        out.flush();
+    }
+
+    // -query <dir> <query> [limit]: prints the paths of images in a label index matching the query
+    private static void query(String dir, String query, int limit) {
+        Logger.setStderr(true); // keep stdout to the paths
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536));
+        LabelIndex index = null;
+        try {
+            index = LabelIndex.openReadOnly(Paths.get(dir));
+            for (String path : index.query(LabelQuery.parse(query), limit)) {
+                out.println(path);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.Info("Could not query label index %s: %s", dir, e);
+        } finally {
+            if (index != null)
+                index.close();
+        }
+        out.flush();
+    }
+
     private static void printHelp() {
-        System.out.println("Must run with -scan or -process as first arg");
+        System.out.println(
+            "Must run with -scan, -process, -direct, -readlog <dir> or -query <dir> <query> [limit] as first arg");
     }
 }
@@ -0,0 +1,187 @@
+package io.jhy.rekognition.s3batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A persistent hash table of long keys to long values, held in a memory-mapped file rather than on the heap. The OS
+ * pages the table in and out as needed, so it can hold hundreds of millions of entries without a large heap.
+ * <p>
+ *     Keys are expected to already be well distributed hashes, and are used directly to pick a slot (linear probing).
+ *     Zero is reserved as the empty slot marker and can't be used as a key. Each entry takes 16 bytes; the table
+ *     doubles (rewriting the file) when it gets past 70% full, so size the initial capacity to avoid that.
+ * </p>
+ */
+public class MappedLongMap implements Closeable {
+    private static final long magic = 0x524b4c4d41503031L; // RKLMAP01
+    private static final int headerSize = 64; // magic, capacity, size; rest reserved
+    private static final int slotSize = 16;
+    private static final int chunkShift = 30; // map in 1GB chunks. (2^30 - header) % slotSize == 0, so slots don't straddle
+    private static final long chunkMask = (1L << chunkShift) - 1;
+    private static final double maxLoad = 0.7;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer[] chunks;
+    private long capacity; // number of slots, a power of 2
+    private long size;
+
+    private MappedLongMap(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the map in this file, or create it sized for the expected number of keys if it doesn't exist yet.
+     */
+    public static MappedLongMap open(Path file, long expectedKeys) throws IOException {
+        MappedLongMap map = new MappedLongMap(file);
+        if (Files.exists(file) && Files.size(file) > 0)
+            map.load();
+        else
+            map.create(capacityFor(expectedKeys));
+        return map;
+    }
+
+    public synchronized long get(long key, long missing) {
+        if (key == 0)
+            return missing; // would match an empty slot
+        long mask = capacity - 1;
+        for (long slot = key & mask; ; slot = (slot + 1) & mask) {
+            long pos = position(slot);
+            long found = getLong(pos);
+            if (found == key)
+                return getLong(pos + 8);
+            if (found == 0)
+                return missing;
+        }
+    }
+
+    public synchronized void put(long key, long value) throws IOException {
+        if (key == 0)
+            throw new IllegalArgumentException("Key 0 is reserved");
+        if (size + 1 > capacity * maxLoad)
+            grow();
+        if (insert(key, value)) {
+            size++;
+            putLong(16, size);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Flush the dirty pages to disk.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        channel.close();
+        chunks = new MappedByteBuffer[0]; // the mappings are released when collected
+    }
+
+    // returns true if the key was added, false if it replaced an existing value
+    private boolean insert(long key, long value) {
+        long mask = capacity - 1;
+        for (long slot = key & mask; ; slot = (slot + 1) & mask) {
+            long pos = position(slot);
+            long found = getLong(pos);
+            if (found == key || found == 0) {
+                putLong(pos + 8, value);
+                putLong(pos, key);
+                return found == 0;
+            }
+        }
+    }
+
+    // rehash into a table twice the size in a new file, then swap it in over the old one
+    private void grow() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".grow");
+        Files.deleteIfExists(tmp);
+        MappedLongMap bigger = new MappedLongMap(tmp);
+        bigger.create(capacity * 2);
+        Logger.Info("Growing index %s to %s slots.", file, bigger.capacity);
+
+        for (long slot = 0; slot < capacity; slot++) {
+            long pos = position(slot);
+            long key = getLong(pos);
+            if (key != 0)
+                bigger.insert(key, getLong(pos + 8));
+        }
+        bigger.size = size;
+        bigger.putLong(16, size);
+        bigger.force();
+
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = bigger.channel; // the open channel and mappings follow the file through the rename
+        chunks = bigger.chunks;
+        capacity = bigger.capacity;
+    }
+
+    private void create(long slots) throws IOException {
+        capacity = slots;
+        size = 0;
+        map(StandardOpenOption.CREATE_NEW);
+        putLong(0, magic);
+        putLong(8, capacity);
+        putLong(16, size);
+    }
+
+    private void load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (in.read(header) < 0)
+                    break;
+            }
+        }
+        if (header.getLong(0) != magic)
+            throw new IOException("Not an index file: " + file);
+        capacity = header.getLong(8);
+        size = header.getLong(16);
+        map(StandardOpenOption.READ);
+    }
+
+    private void map(StandardOpenOption mode) throws IOException {
+        long length = headerSize + capacity * slotSize;
+        channel = FileChannel.open(file, mode, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int numChunks = (int) ((length + chunkMask) >>> chunkShift);
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            long start = (long) i << chunkShift;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(chunkMask + 1, length - start));
+        }
+    }
+
+    private static long capacityFor(long expectedKeys) {
+        long needed = Math.max(16, (long) (expectedKeys / maxLoad) + 1);
+        return Long.highestOneBit(needed - 1) << 1;
+    }
+
+    private static long position(long slot) {
+        return headerSize + slot * slotSize;
+    }
+
+    private long getLong(long pos) {
+        return chunks[(int) (pos >>> chunkShift)].getLong((int) (pos & chunkMask));
+    }
+
+    private void putLong(long pos, long value) {
+        chunks[(int) (pos >>> chunkShift)].putLong((int) (pos & chunkMask), value);
+    }
+}
@@ -0,0 +1,27 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Tracks the messages a Processor is working on, and what became of them.
+ */
+interface MessageTracker {
+    void received(Message message);
+
+    /**
+     * The message was processed (or can be skipped).
+     */
+    void delete(Message message);
+
+    /**
+     * The message failed, and should be processed again later if possible.
+     */
+    void release(Message message);
+
+    /**
+     * Checks if the message may have been handed to another worker while it waited to be started.
+     */
+    boolean isExpired(Message message);
+
+    void close();
+}
@@ -0,0 +1,91 @@
+package io.jhy.rekognition.s3batch;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The processor's counters, latency histograms and gauges, by name. Names are dotted paths, e.g. "sqs.receive" or
+ * "sink.DynamoWriter"; the exporters turn them into whatever form they need.
+ * <p>
+ *     Look a counter or histogram up once and keep it, rather than by name on every update; the lookup is a map
+ *     read, the update an atomic add. A count kept elsewhere, e.g. by a sink, can be registered as a counter too.
+ * </p>
+ */
+public class Metrics {
+    private final Map<String, LongSupplier> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> adders = new ConcurrentHashMap<>(); // the counters kept here
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> lastCounts = new ConcurrentHashMap<>(); // at the last summary, for rates
+    private long lastSummary = System.nanoTime();
+
+    public LongAdder counter(String name) {
+        return adders.computeIfAbsent(name, n -> {
+            LongAdder adder = new LongAdder();
+            counters.put(n, adder::sum);
+            return adder;
+        });
+    }
+
+    /**
+     * A count read when the metrics are, that only goes up, e.g. the number of calls throttled.
+     */
+    public void counter(String name, LongSupplier count) {
+        counters.put(name, count);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * A value read when the metrics are, e.g. a queue's size.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    Map<String, LongSupplier> counters() {
+        return counters;
+    }
+
+    Map<String, LatencyHistogram> histograms() {
+        return histograms;
+    }
+
+    Map<String, LongSupplier> gauges() {
+        return gauges;
+    }
+
+    /**
+     * One line for the log: counters with their rates since the last summary, gauges, and latency percentiles.
+     */
+    synchronized String summary() {
+        long now = System.nanoTime();
+        double secs = Math.max((now - lastSummary) / 1e9, 0.001);
+        lastSummary = now;
+
+        StringBuilder line = new StringBuilder("Metrics:");
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            long value = counter.getValue().getAsLong();
+            Long last = lastCounts.put(counter.getKey(), value);
+            line.append(String.format(Locale.ROOT, " %s=%d (%.1f/s)", counter.getKey(), value,
+                (value - (last == null ? 0 : last)) / secs));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            line.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            LatencyHistogram h = histogram.getValue();
+            if (h.count() == 0)
+                continue;
+            line.append(String.format(Locale.ROOT, " %s p50/p99/max=%.1f/%.1f/%.1fms", histogram.getKey(),
+                h.percentileMicros(0.5) / 1000.0, h.percentileMicros(0.99) / 1000.0, h.maxMicros() / 1000.0));
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package io.jhy.rekognition.s3batch;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Publishes Metrics as attributes of a JMX MBean, and optionally in Prometheus' text format at /metrics on a local
+ * HTTP port. Both read the metrics as they're asked for, so there's no cost between reads.
+ * <p>
+ *     The HTTP server only listens on the loopback address; put an agent or a proxy in front of it to scrape from
+ *     elsewhere.
+ * </p>
+ */
+class MetricsExporter implements AutoCloseable {
+    private static final double[] quantiles = {0.5, 0.9, 0.99};
+
+    private final Metrics metrics;
+    private ObjectName mbeanName;
+    private HttpServer http;
+
+    MetricsExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            mbeanName = new ObjectName("io.jhy.rekognition.s3batch:type=" + name);
+            if (server.isRegistered(mbeanName))
+                server.unregisterMBean(mbeanName);
+            server.registerMBean(new MetricsMBean(), mbeanName);
+        } catch (JMException e) {
+            Logger.Info("Could not register metrics MBean: %s", e);
+            mbeanName = null;
+        }
+    }
+
+    void serve(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        Logger.Info("Serving metrics on http://localhost:%s/metrics", port);
+    }
+
+    @Override
+    public void close() {
+        if (http != null)
+            http.stop(0);
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                Logger.Debug("Could not unregister metrics MBean: %s", e);
+            }
+        }
+    }
+
+    String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, LongSupplier> counter : metrics.counters().entrySet()) {
+            String name = promName(counter.getKey()) + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(counter.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : metrics.gauges().entrySet()) {
+            String name = promName(gauge.getKey());
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : metrics.histograms().entrySet()) {
+            String name = promName(histogram.getKey()) + "_seconds";
+            LatencyHistogram h = histogram.getValue();
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : quantiles) {
+                out.append(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.6f\n", name, q,
+                    h.percentileMicros(q) / 1e6));
+            }
+            out.append(String.format(Locale.ROOT, "%s_sum %.6f\n", name, h.sumMicros() / 1e6));
+            out.append(name).append("_count ").append(h.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String promName(String name) {
+        return "s3batch_" + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    // every metric as a read-only long attribute; a histogram gives Count, P50Micros, P99Micros and MaxMicros
+    private Map<String, Long> attributes() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> counter : metrics.counters().entrySet()) {
+            values.put(counter.getKey(), counter.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : metrics.gauges().entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : metrics.histograms().entrySet()) {
+            LatencyHistogram h = histogram.getValue();
+            values.put(histogram.getKey() + ".Count", h.count());
+            values.put(histogram.getKey() + ".P50Micros", h.percentileMicros(0.5));
+            values.put(histogram.getKey() + ".P99Micros", h.percentileMicros(0.99));
+            values.put(histogram.getKey() + ".MaxMicros", h.maxMicros());
+        }
+        return values;
+    }
+
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = attributes().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Long> values = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name))
+                    list.add(new Attribute(name, values.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations");
+        }
+
+        // rebuilt on each call, as sinks register their metrics after start up
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String name : attributes().keySet()) {
+                infos.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(MetricsMBean.class.getName(), "s3batch processor metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
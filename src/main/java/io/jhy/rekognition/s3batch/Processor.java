@@ -1,38 +1,105 @@
 package io.jhy.rekognition.s3batch;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.rekognition.AmazonRekognitionClient;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.AmazonRekognitionAsync;
 import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
-import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.DetectModerationLabelsRequest;
 import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.ImageTooLargeException;
 import com.amazonaws.services.rekognition.model.InvalidParameterException;
 import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.ModerationLabel;
+import com.amazonaws.services.rekognition.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.rekognition.model.S3Object;
+import com.amazonaws.services.rekognition.model.ThrottlingException;
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import io.jhy.rekognition.s3batch.processor.Bulkhead;
 import io.jhy.rekognition.s3batch.processor.CloudSearchIndexer;
 import io.jhy.rekognition.s3batch.processor.DynamoWriter;
+import io.jhy.rekognition.s3batch.processor.Futures;
+import io.jhy.rekognition.s3batch.processor.LabelIndex;
+import io.jhy.rekognition.s3batch.processor.LabelLogWriter;
 import io.jhy.rekognition.s3batch.processor.LabelProcessor;
 import io.jhy.rekognition.s3batch.processor.S3ObjectTagger;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 public class Processor {
     private AmazonSQSClient sqs;
-    private String queueUrl;
+    private DirectQueue direct; // null unless taking jobs straight from a scanner
+    private List<Source> sources = new ArrayList<>(); // the queues jobs come from, highest priority first
     private AtomicLong numSeen = new AtomicLong(0);
     private long maxImagesToProcess;
     private ThreadPoolExecutor executor;
-    private AmazonRekognitionClient rek;
+    private SlotScheduler slots; // bounds the messages held: prefetched in the executor queue, running, or in the sinks
+    private JobOrder jobOrder; // the order prefetched jobs start in, by their queue's priority or weight
+    private int numPollers;
+    private volatile boolean stopping;
+    private AwsClients clients;
+    private boolean ownsClients; // built them itself, so shuts them down once done
+    private AmazonRekognition rek;
+    private AsyncEngine asyncEngine; // null unless running -async
+    private int maxSlots;
+    private LabelCache cache; // null unless -cache
+    private AmazonS3Client s3; // for the ETags cache lookups need, and image bytes
+    private ExecutorService lookups; // cache lookups and image fetches in async mode, as they make blocking calls
+    private ImageFetcher fetcher; // null unless sending image bytes, with -bytes
+    private long maxBytes = maxImageBytes; // largest image to process: Rekognition's limit, or -maxfetch with -bytes
+    private Deduplicator dedup; // null unless -dedup
+    private boolean moderation; // also detect moderation labels
     private List<LabelProcessor> processors = new ArrayList<>();
+    private List<Bulkhead> sinks = new ArrayList<>(); // the processors, each behind its own queue
+    private List<LatencyHistogram> sinkLatency = new ArrayList<>(); // by sink
+    private int sinkThreads;
+    private int tagThreads; // for the tagger's sink, in place of sinkThreads
+    private int sinkQueue;
+    private long sinkWaitMillis;
     private float minConfidence;
+    private ConcurrencyLimiter limiter;
+    private AtomicLong numRetries = new AtomicLong(0);
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram receiveLatency = metrics.histogram("sqs.receive");
+    private final LatencyHistogram jobLatency = metrics.histogram("job"); // received to acked
+    private final LatencyHistogram fetchLatency = metrics.histogram("s3.fetch");
+    private final LatencyHistogram labelsLatency = metrics.histogram("rekognition.detectLabels");
+    private final LatencyHistogram moderationLatency = metrics.histogram("rekognition.detectModerationLabels");
+    private final LongAdder numDeleted = metrics.counter("messages.deleted");
+    private final LongAdder numSkipped = metrics.counter("messages.skipped");
+    private final LongAdder numReleased = metrics.counter("messages.released");
+    private final LongAdder numExpired = metrics.counter("messages.expired");
+    private final LongAdder numDuplicates = metrics.counter("messages.duplicate");
+    private int metricsPort; // -1 for no HTTP endpoint
+    private static final long maxImageBytes = 15 * 1024 * 1024; // Rekognition's limit for images in S3
+    private static final long maxBufferBytes = Integer.MAX_VALUE - 8; // the most a BufferPool buffer can hold
+    private static final int maxCloudSearchBufferMegabytes = Integer.MAX_VALUE / (1024 * 1024);
+    static final int maxAttempts = 6;
+    private static final long backoffMillis = 100;
+    private static final long maxBackoffMillis = 10000;
+    private static final String moderationPrefix = "moderation.";
+    private static final String sentTimestamp = "SentTimestamp";
 
     public static void main(String[] args) {
         ProcessorConfig opt = new ProcessorConfig(args);
@@ -46,111 +113,745 @@ public class Processor {
     }
 
     public Processor(ProcessorConfig config) {
-        ProfileCredentialsProvider creds = new ProfileCredentialsProvider(config.profile());
-        creds.getCredentials(); // credible credential criteria
+        this(config, null);
+    }
+
+    /**
+     * Processes jobs from the given in-memory queue, or from the SQS queue in the config if null.
+     */
+    Processor(ProcessorConfig config, DirectQueue directQueue) {
+        this(config, directQueue,
+            AwsClients.forProfile(config.profile(), Integer.parseInt(config.concurrency())), null);
+        ownsClients = true;
+    }
 
+    /**
+     * With the given clients, shared with e.g. a scanner in the same JVM, and Rekognition client, e.g. a fake for
+     * benchmarks, or the shared one if null. It must be an AmazonRekognitionAsync to run -async.
+     */
+    Processor(ProcessorConfig config, DirectQueue directQueue, AwsClients clients, AmazonRekognition rekognition) {
         if (config.disableCerts())
             System.setProperty("com.amazonaws.sdk.disableCertChecking", "true");
 
+        int maxWorkers = Integer.parseInt(config.concurrency());
+        this.clients = clients;
+
         // Rekognition init
-        rek = new AmazonRekognitionClient(creds);
+        AmazonRekognitionAsync rekAsync = null;
+        if (rekognition != null)
+            rek = rekognition;
+        else if (config.async())
+            rek = clients.rekognitionAsync();
+        else
+            rek = clients.rekognition();
+        if (config.async())
+            rekAsync = (AmazonRekognitionAsync) rek;
         if (config.endpointOverride())
             rek.setEndpoint(config.endpoint());
         minConfidence = Integer.parseInt(config.confidence());
+        moderation = config.moderation();
 
+        // Label cache
+        if (config.wantCache()) {
+            try {
+                cache = new LabelCache(Paths.get(config.cache()), Integer.parseInt(config.cacheSize()),
+                    Long.parseLong(config.cacheKeys()), minConfidence, moderation);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not open label cache " + config.cache(), e);
+            }
+        }
 
-        // The SQS queue to find jobs on
-        sqs = new AmazonSQSClient(creds);
-        queueUrl = sqs.createQueue(config.queue()).getQueueUrl();
+        // Image bytes, fetched once into pooled buffers and shared by all the Rekognition calls for the image
+        if (config.wantCache() || config.bytes())
+            s3 = clients.s3();
+        if (config.bytes()) {
+            long downscale = Long.parseLong(config.downscale());
+            maxBytes = Long.parseLong(config.maxFetch());
+            if (maxBytes < 1 || maxBytes > maxBufferBytes)
+                throw new IllegalArgumentException("Max fetch must be 1 to " + maxBufferBytes + " bytes: " + maxBytes);
+            BufferPool buffers = new BufferPool(Integer.parseInt(config.buffers()), 1024 * 1024,
+                (int) Math.min(maxImageBytes, downscale * 2));
+            fetcher = new ImageFetcher(s3, buffers, downscale, Long.parseLong(config.maxPixels()),
+                Integer.parseInt(config.decodes()));
+        }
+        if (config.async() && s3 != null)
+            lookups = Executors.newFixedThreadPool(maxWorkers);
+        if (config.dedup())
+            dedup = new Deduplicator(Long.parseLong(config.dedupWindow()) * 1000, Integer.parseInt(config.dedupSize()));
+
+
+        // The SQS queues to find jobs on, each as name[:weight]
+        if (directQueue != null) {
+            direct = directQueue;
+            sources.add(new Source(0, "direct", null, direct.tracker(), metrics));
+        } else {
+            sqs = clients.sqs();
+            for (String queue : config.queue().split(",")) {
+                String[] nameWeight = queue.trim().split(":");
+                String url = sqs.createQueue(nameWeight[0]).getQueueUrl();
+                Source source = new Source(sources.size(), nameWeight[0], url, new Acknowledger(sqs, url), metrics);
+                source.weight = nameWeight.length > 1 ? Integer.parseInt(nameWeight[1]) : 1;
+                if (source.weight < 1)
+                    throw new IllegalArgumentException("Queue weights must be at least 1: " + queue);
+                sources.add(source);
+            }
+        }
 
         // Processors
-        if (config.wantCloudSearch())
-            processors.add(new CloudSearchIndexer(creds, config.cloudSearch()));
-        if (config.wantDynamo())
-            processors.add(new DynamoWriter(creds, config.dynamo()));
+        if (config.wantCloudSearch() && config.cloudSearchBatch()) {
+            int bufferMegabytes = Integer.parseInt(config.cloudSearchBuffer());
+            if (bufferMegabytes < 1 || bufferMegabytes > maxCloudSearchBufferMegabytes) // it's counted in int bytes
+                throw new IllegalArgumentException(
+                    "Cloud Search buffer must be 1 to " + maxCloudSearchBufferMegabytes + " MB: " + bufferMegabytes);
+            processors.add(new CloudSearchIndexer(clients, config.cloudSearch(),
+                Long.parseLong(config.cloudSearchLinger()), bufferMegabytes * 1024 * 1024));
+        } else if (config.wantCloudSearch())
+            processors.add(new CloudSearchIndexer(clients, config.cloudSearch()));
+        if (config.wantDynamo() && config.dynamoBatch())
+            processors.add(new DynamoWriter(clients, config.dynamo(), Long.parseLong(config.dynamoLinger()),
+                Integer.parseInt(config.dynamoBuffer())));
+        else if (config.wantDynamo())
+            processors.add(new DynamoWriter(clients, config.dynamo()));
         if (config.wantTags3())
-            processors.add(new S3ObjectTagger(creds, config.tagPrefix()));
+            processors.add(new S3ObjectTagger(clients, config.tagPrefix()));
+        if (config.wantLabelLog()) {
+            try {
+                processors.add(new LabelLogWriter(Paths.get(config.labelLog()),
+                    Long.parseLong(config.labelLogSegment()) * 1024 * 1024));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not open label log " + config.labelLog(), e);
+            }
+        }
+        if (config.wantLabelIndex()) {
+            try {
+                // a result holds its place in the sink until it's flushed, so flush once the sink is full
+                processors.add(new LabelIndex(Paths.get(config.labelIndex()), Long.parseLong(config.labelIndexFlush()),
+                    Integer.parseInt(config.sinkThreads()) + Integer.parseInt(config.sinkQueue()),
+                    Long.parseLong(config.labelIndexImages())));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not open label index " + config.labelIndex(), e);
+            }
+        }
 
-        // Executor Service
-        int maxWorkers = Integer.parseInt(config.concurrency());
+        // Executor Service. The queue is the prefetch buffer; it's unbounded here as the pollers only take as many
+        // messages as there are free slots, which caps it at maxWorkers. It's ordered by jobOrder, so a message from
+        // a higher priority queue doesn't wait behind ones prefetched from a lower one
         executor = new ThreadPoolExecutor(
-            1, maxWorkers, 30, TimeUnit.SECONDS,
-            new ArrayBlockingQueue<>(maxWorkers * 2, false),
-            new CallerRunsPolicy() // prevents backing up too many jobs
+            maxWorkers, maxWorkers, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>()
         );
+        limiter = new ConcurrencyLimiter(
+            Integer.parseInt(config.minConcurrency()), maxWorkers, Math.max(1, maxWorkers / 2));
+
+        // Sinks. Each processor gets its own bounded queue, so they run in parallel and a slow one only backs up itself
+        sinkThreads = Integer.parseInt(config.sinkThreads());
+        tagThreads = Integer.parseInt(config.tagThreads());
+        sinkQueue = Integer.parseInt(config.sinkQueue());
+        sinkWaitMillis = Long.parseLong(config.sinkWait());
+
+        // In async mode, the executor isn't used; jobs are chained futures, and the slots bound the jobs in flight.
+        // Otherwise the slots cover the prefetch buffer, the workers, and jobs handed on to the sinks.
+        if (rekAsync != null) {
+            asyncEngine = new AsyncEngine(rekAsync, limiter, numRetries, metrics);
+            maxSlots = Integer.parseInt(config.maxInFlight());
+        } else {
+            maxSlots = maxWorkers * 2 + sinkThreads + sinkQueue;
+        }
+        int[] weights = new int[sources.size()];
+        for (Source source : sources) {
+            weights[source.index] = source.weight;
+        }
+        slots = new SlotScheduler(maxSlots, weights, config.priority());
+        jobOrder = new JobOrder(weights, config.priority());
+        numPollers = Integer.parseInt(config.pollers());
 
         maxImagesToProcess = Long.parseLong(config.max());
+        metricsPort = Integer.parseInt(config.metricsPort());
     }
 
     public void start() {
         if (processors.isEmpty()) {
             Logger.Info("No processors defined, will not start up.");
+            if (direct != null)
+                direct.abandon();
             return;
         }
 
-        Logger.Info("Processor started up, looking for messages on %s", queueUrl);
+        for (LabelProcessor processor : processors) {
+            int threads = processor instanceof S3ObjectTagger ? tagThreads : sinkThreads;
+            Bulkhead sink = new Bulkhead(processor, threads, sinkQueue, sinkWaitMillis);
+            sinks.add(sink);
+            sinkLatency.add(metrics.histogram("sink." + sink.name()));
+        }
+        MetricsExporter exporter = exportMetrics();
+
+        for (Source source : sources) {
+            Logger.Info("Processor started up, looking for messages on %s (weight %s) with %s pollers",
+                source.url != null ? source.url : "the scanner", source.weight, numPollers);
+        }
+
+        ScheduledExecutorService status = Executors.newSingleThreadScheduledExecutor();
+        status.scheduleWithFixedDelay(this::logStatus, 30, 30, TimeUnit.SECONDS);
+
+        ExecutorService pollers = Executors.newFixedThreadPool(numPollers * sources.size());
+        for (Source source : sources) {
+            for (int i = 0; i < numPollers; i++) {
+                pollers.execute(() -> poll(source));
+            }
+        }
+        pollers.shutdown();
+        awaitTermination(pollers, "pollers");
+        if (direct != null)
+            direct.abandon(); // stopped early, e.g. on -max; don't hold up the scanner
 
-        while (!executor.isShutdown()) {
-            // poll for messages on the queue.
-            ReceiveMessageRequest poll = new ReceiveMessageRequest(queueUrl)
-                .withMaxNumberOfMessages(10)
-                .withWaitTimeSeconds(20);
-            List<Message> messages = sqs.receiveMessage(poll).getMessages();
-            Logger.Debug("Got %s messages from queue. Processed %s so far.", messages.size(), numSeen.get());
+        executor.shutdown();
+        awaitTermination(executor, "running jobs");
+        slots.acquireAll(); // all returned once every job has completed in the sinks
+        if (asyncEngine != null)
+            asyncEngine.shutdown();
+        if (lookups != null)
+            lookups.shutdown();
+        for (Bulkhead sink : sinks) {
+            sink.close(); // finishes buffered writes, acking their messages
+        }
+        status.shutdownNow();
+        for (Source source : sources) {
+            source.ack.close();
+        }
+        logStatus();
+        exporter.close();
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                Logger.Info("Could not close label cache: %s", e);
+            }
+        }
+        if (ownsClients)
+            clients.shutdown(); // the async clients' threads would keep the JVM running
+    }
+
+    private void logStatus() {
+        Logger.Info("Processed %s. Rekognition concurrency limit %s, in flight %s, throttled %s times, retried %s.",
+            numSeen.get(), limiter.limit(), limiter.inFlight(), limiter.numThrottles(), numRetries.get());
+        for (Bulkhead sink : sinks) {
+            Logger.Info("Sink %s", sink);
+        }
+        for (Source source : sources) {
+            refreshBacklog(source);
+            Logger.Info("Queue %s", source);
+        }
+        if (cache != null)
+            Logger.Info("%s", cache.stats());
+        Logger.Info("%s", metrics.summary());
+    }
+
+    // the gauges, and counters kept elsewhere, read the pipeline's state when the metrics are, so cost nothing until
+    // then
+    private MetricsExporter exportMetrics() {
+        metrics.counter("messages.seen", numSeen::get);
+        metrics.gauge("jobs.inflight", () -> maxSlots - slots.available());
+        metrics.gauge("executor.queue", () -> executor.getQueue().size());
+        metrics.gauge("executor.active", executor::getActiveCount);
+        metrics.gauge("rekognition.limit", limiter::limit);
+        metrics.gauge("rekognition.inflight", limiter::inFlight);
+        metrics.counter("rekognition.throttles", limiter::numThrottles);
+        metrics.counter("rekognition.retries", numRetries::get);
+        if (dedup != null) {
+            metrics.gauge("dedup.inflight", dedup::numInFlight);
+            metrics.gauge("dedup.remembered", dedup::numRemembered);
+        }
+        for (Bulkhead sink : sinks) {
+            metrics.gauge("sink." + sink.name() + ".depth", sink::depth);
+            metrics.counter("sink." + sink.name() + ".failed", sink::numFailed);
+            metrics.counter("sink." + sink.name() + ".rejected", sink::numRejected);
+        }
+        for (Source source : sources) {
+            if (source.url != null)
+                metrics.gauge("queue." + source.name + ".backlog", source.backlog::get);
+        }
+
+        metrics.gauge("http.maxconnections", clients::maxConnections);
+        clients.exportMetrics(metrics);
+
+        MetricsExporter exporter = new MetricsExporter(metrics);
+        exporter.registerMBean(direct != null ? "DirectProcessor" : "Processor");
+        if (metricsPort >= 0) {
+            try {
+                exporter.serve(metricsPort);
+            } catch (IOException e) {
+                Logger.Info("Could not serve metrics on port %s: %s", metricsPort, e);
+            }
+        }
+        return exporter;
+    }
+
+    /**
+     * Counters, latencies and gauges for each stage of the pipeline, also published over JMX.
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Number of jobs queued or running in each sink, by processor name.
+     */
+    public Map<String, Integer> sinkDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (Bulkhead sink : sinks) {
+            depths.put(sink.name(), sink.depth());
+        }
+        return depths;
+    }
+
+    // the queue's approximate number of visible messages, for the backlog gauge; read with the status log, as it's a
+    // call to SQS
+    private void refreshBacklog(Source source) {
+        if (source.url == null)
+            return;
+        try {
+            String visible = sqs.getQueueAttributes(new GetQueueAttributesRequest(source.url)
+                .withAttributeNames(QueueAttributeName.ApproximateNumberOfMessages))
+                .getAttributes().get(QueueAttributeName.ApproximateNumberOfMessages.toString());
+            source.backlog.set(Long.parseLong(visible));
+        } catch (RuntimeException e) {
+            Logger.Debug("Could not read the backlog of %s: %s", source.name, e);
+        }
+    }
+
+    // Receives messages from the queue into the executor's queue while there is room for them. When the buffer is
+    // full, this waits for a worker to free a slot rather than polling for messages it can't start on; the slot goes
+    // to whichever queue is next by weight or priority. Slots are taken before the long poll, so while the queue is
+    // quiet, each poller only takes one, and goes back to taking a full batch once messages turn up.
+    private void poll(Source source) {
+        boolean quiet = false;
+        while (!stopping) {
+            int want;
+            try {
+                want = slots.acquire(source.index, quiet ? 1 : 10);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (stopping) {
+                slots.release(want);
+                return;
+            }
+
+            List<Message> messages;
+            long start = System.nanoTime();
+            try {
+                messages = receive(source, want);
+                receiveLatency.recordSince(start);
+            } catch (InterruptedException e) {
+                slots.release(want);
+                return;
+            } catch (RuntimeException e) {
+                slots.release(want);
+                Logger.Info("Could not receive messages from %s: %s", source.name, e);
+                pause(1000);
+                continue;
+            }
+            slots.release(want - messages.size());
+            quiet = messages.isEmpty();
+            if (messages.isEmpty() && direct != null && direct.isDrained()) {
+                Logger.Info("Scanner has finished and its images are all started, quitting.");
+                stopping = true;
+            }
+            Logger.Debug("Got %s messages from %s. Processed %s so far.", messages.size(), source.name, numSeen.get());
 
             // process the messages in parallel.
             for (Message message : messages) {
                 numSeen.incrementAndGet();
-                executor.execute(() -> {
-                    try {
-                        processTask(message);
-                    } catch (InvalidParameterException e) {
-                        if (e.getMessage().contains("Minimum image height")) {
-                            Logger.Debug("Input image %s too small to analyze, skipping.", message.getBody());
-                        }
+                source.received(message);
+                long received = System.nanoTime();
+                long key = dedupKey(message);
+                Deduplicator.Seen seen = key == 0 ? Deduplicator.Seen.NEW : dedup.tryStart(key);
+                if (seen != Deduplicator.Seen.NEW) {
+                    numDuplicates.increment();
+                    if (seen == Deduplicator.Seen.COMPLETED) {
+                        Logger.Debug("Image %s was processed recently, skipping.", message.getBody());
+                        completeTask(source, message, 0, null);
+                    } else {
+                        // leave it on the queue, in case the copy in flight fails
+                        Logger.Debug("Image %s is in flight, leaving on the queue.", message.getBody());
+                        source.ack.release(message);
                     }
-                });
-
-                // remove the job from the queue when completed successfully (or skipped)
-                sqs.deleteMessage(queueUrl, message.getReceiptHandle());
+                    slots.release(1);
+                    continue;
+                }
+                if (asyncEngine != null) {
+                    runTaskAsync(source, message, key).whenComplete((v, e) -> finishJob(received));
+                } else {
+                    // the worker is freed once labels are detected; the slot is held until the sinks are done
+                    executor.execute(jobOrder.job(source.index,
+                        () -> runTask(source, message, key).whenComplete((v, e) -> finishJob(received))));
+                }
             }
-            if (maxImagesToProcess > -1 && numSeen.get() > maxImagesToProcess) {
+            if (maxImagesToProcess > -1 && numSeen.get() > maxImagesToProcess && !stopping) {
                 Logger.Info("Seen enough (%s), quitting.", numSeen.get());
-                executor.shutdownNow();
+                stopping = true;
             }
+        }
+    }
 
-            // error handling is simple here - an exception will terminate just the impacted job, and the job is left
-            // on the queue, so you can fix and re-drive. Alternatively you could catch and write to a dead letter queue
+    // the message's image for the deduplicator, or 0 if not deduplicating it
+    private long dedupKey(Message message) {
+        if (dedup == null)
+            return 0;
+        try {
+            return Deduplicator.keyOf(ScanMessage.parse(message.getBody()));
+        } catch (RuntimeException e) {
+            return 0; // let the job fail on it as usual
         }
     }
 
-    private void processTask(Message message) {
-        String path = message.getBody();
-        PathSplit pathComp = new PathSplit(path);
-        String bucket = pathComp.bucket;
-        String key = pathComp.key;
+    private void finishJob(long received) {
+        jobLatency.recordSince(received);
+        slots.release(1);
+    }
+
+    private List<Message> receive(Source source, int max) throws InterruptedException {
+        if (direct != null)
+            return direct.take(max, 1, TimeUnit.SECONDS);
+
+        ReceiveMessageRequest poll = new ReceiveMessageRequest(source.url)
+            .withMaxNumberOfMessages(max)
+            .withWaitTimeSeconds(20)
+            .withAttributeNames(sentTimestamp);
+        return sqs.receiveMessage(poll).getMessages();
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Void> runTask(Source source, Message message, long key) {
+        if (source.ack.isExpired(message)) {
+            // it sat in the buffer past its visibility timeout, so may already be with another worker
+            Logger.Debug("Message for %s expired before it was started, leaving on the queue.", message.getBody());
+            numExpired.increment();
+            source.ack.release(message);
+            if (key != 0)
+                dedup.finish(key, false);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // an Error fails just this job too, so its slot and message are still given back
+        CompletableFuture<Void> task;
+        try {
+            task = processTask(message);
+        } catch (Throwable e) {
+            task = Futures.failed(e);
+        }
+        return task.whenComplete((v, e) -> completeTask(source, message, key,
+            e == null ? null : AsyncEngine.unwrap(e)));
+    }
+
+    private CompletableFuture<Void> runTaskAsync(Source source, Message message, long key) {
+        CompletableFuture<Void> task;
+        try {
+            task = processTaskAsync(message);
+        } catch (Throwable e) {
+            task = Futures.failed(e);
+        }
+        return task.whenComplete((v, e) -> completeTask(source, message, key,
+            e == null ? null : AsyncEngine.unwrap(e)));
+    }
+
+    // error handling is simple here - an exception will terminate just the impacted job, and the job is left on the
+    // queue, so you can fix and re-drive. Alternatively you could catch and write to a dead letter queue
+    private void completeTask(Source source, Message message, long key, Throwable error) {
+        if (error instanceof InvalidParameterException || error instanceof ImageTooLargeException) {
+            // not something a retry will fix, so skip it
+            if (String.valueOf(error.getMessage()).contains("Minimum image height"))
+                Logger.Debug("Input image %s too small to analyze, skipping.", message.getBody());
+            else
+                Logger.Info("Input image %s could not be analyzed, skipping: %s", message.getBody(), error.getMessage());
+            numSkipped.increment();
+        } else if (error != null) {
+            Logger.Info("Failed to process %s, leaving on the queue: %s", message.getBody(), error);
+            numReleased.increment();
+            source.ack.release(message);
+            if (key != 0)
+                dedup.finish(key, false);
+            return;
+        }
+
+        // remove the job from the queue when completed successfully (or skipped)
+        numDeleted.increment();
+        source.deleted.increment();
+        source.ack.delete(message);
+        if (key != 0)
+            dedup.finish(key, true);
+    }
+
+    private static void awaitTermination(ExecutorService service, String name) {
+        try {
+            while (!service.awaitTermination(10, TimeUnit.SECONDS)) {
+                Logger.Debug("Waiting for %s to complete.", name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // detects labels on this thread, then hands them to the sinks
+    private CompletableFuture<Void> processTask(Message message) {
+        ScanMessage job = ScanMessage.parse(message.getBody());
+        String path = job.path();
+        String bucket = job.bucket();
+        String key = job.key();
         Logger.Info("Processing %s %s", bucket, key);
+        if (isTooLarge(job)) {
+            numSkipped.increment();
+            return CompletableFuture.completedFuture(null);
+        }
 
-        // Rekognition: Detect Labels from S3 object
-        DetectLabelsRequest req = new DetectLabelsRequest()
-            .withImage(new Image().withS3Object(new S3Object().withBucket(bucket).withName(key)))
-            .withMinConfidence(minConfidence);
-        DetectLabelsResult result;
-        result = rek.detectLabels(req);
-        List<Label> labels = result.getLabels();
+        // Rekognition: Detect Labels from S3 object, unless we've seen this image before
+        List<Label> labels;
+        String etag = null;
+        if (cache != null) {
+            etag = etagOf(job);
+            labels = cache.get(etag);
+        } else {
+            labels = null;
+        }
+        if (labels == null) {
+            labels = detect(job);
+            if (cache != null)
+                cache.put(etag, labels);
+        }
         Logger.Debug("In %s, found: %s", key, labels);
 
         // Process downstream actions:
-        for (LabelProcessor processor : processors) {
-            processor.process(labels, path);
+        return fanOut(labels, path);
+    }
+
+    // the same job as processTask, as a chain of futures: detect -> fan out to the processors
+    private CompletableFuture<Void> processTaskAsync(Message message) {
+        ScanMessage job = ScanMessage.parse(message.getBody());
+        String path = job.path();
+        String key = job.key();
+        Logger.Info("Processing %s %s", job.bucket(), key);
+        if (isTooLarge(job)) {
+            numSkipped.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<List<Label>> detected;
+        if (cache != null) {
+            CompletableFuture<String> version = job.etag() != null
+                ? CompletableFuture.completedFuture(job.etag())
+                : CompletableFuture.supplyAsync(() -> etagOf(job), lookups);
+            detected = version
+                .thenCompose(etag -> {
+                    List<Label> cached = cache.get(etag);
+                    if (cached != null)
+                        return CompletableFuture.completedFuture(cached);
+                    return detectAsync(job)
+                        .thenApply(labels -> {
+                            cache.put(etag, labels);
+                            return labels;
+                        });
+                });
+        } else {
+            detected = detectAsync(job);
+        }
+
+        return detected
+            .thenCompose(labels -> {
+                Logger.Debug("In %s, found: %s", key, labels);
+                return fanOut(labels, path);
+            });
+    }
+
+    // passes the labels to every sink at once, completing when they all have
+    private CompletableFuture<Void> fanOut(List<Label> labels, String path) {
+        CompletableFuture<?>[] done = new CompletableFuture<?>[sinks.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < done.length; i++) {
+            LatencyHistogram latency = sinkLatency.get(i);
+            done[i] = sinks.get(i).processAsync(labels, path).whenComplete((v, e) -> latency.recordSince(start));
+        }
+        return CompletableFuture.allOf(done);
+    }
+
+    // the content version to key cached labels by: from the scan, or else from S3
+    private String etagOf(ScanMessage job) {
+        if (job.etag() != null)
+            return job.etag();
+        return s3.getObjectMetadata(job.bucket(), job.key()).getETag();
+    }
+
+    // skips images Rekognition would reject for size, or too large to fetch with -bytes, when the scan said how big
+    // they are
+    private boolean isTooLarge(ScanMessage job) {
+        if (job.size() == null || job.size() <= maxBytes)
+            return false;
+        Logger.Info("Input image %s is %s bytes, too large to analyze, skipping.", job.path(), job.size());
+        return true;
+    }
+
+    // Runs every detection asked for on the image: from S3, or from bytes fetched once for all of them
+    private List<Label> detect(ScanMessage job) {
+        if (fetcher == null)
+            return detect(() -> s3Image(job));
+        try (BufferPool.Buffer bytes = fetch(job)) {
+            return detect(() -> new Image().withBytes(bytes.asByteBuffer()));
+        }
+    }
+
+    private List<Label> detect(Supplier<Image> image) {
+        List<Label> labels = call(() -> rek.detectLabels(labelsRequest(image.get())).getLabels(), labelsLatency);
+        if (!moderation)
+            return labels;
+        return withModeration(labels,
+            call(() -> rek.detectModerationLabels(moderationRequest(image.get())).getModerationLabels(),
+                moderationLatency));
+    }
+
+    private CompletableFuture<List<Label>> detectAsync(ScanMessage job) {
+        if (fetcher == null)
+            return detectAsync(() -> s3Image(job));
+        return CompletableFuture.supplyAsync(() -> fetch(job), lookups)
+            .thenCompose(bytes -> detectAsync(() -> new Image().withBytes(bytes.asByteBuffer()))
+                .whenComplete((labels, e) -> bytes.close()));
+    }
+
+    private BufferPool.Buffer fetch(ScanMessage job) {
+        long start = System.nanoTime();
+        try {
+            return fetcher.fetch(job.bucket(), job.key(), maxBytes);
+        } finally {
+            fetchLatency.recordSince(start);
         }
     }
 
+    // completes once all the calls have, so the image isn't released while one is still sending it
+    private CompletableFuture<List<Label>> detectAsync(Supplier<Image> image) {
+        CompletableFuture<List<Label>> labels = asyncEngine.detectLabels(labelsRequest(image.get()));
+        if (!moderation)
+            return labels;
+        CompletableFuture<List<ModerationLabel>> flagged =
+            asyncEngine.detectModerationLabels(moderationRequest(image.get()));
+        return CompletableFuture.allOf(labels, flagged)
+            .thenApply(v -> withModeration(labels.join(), flagged.join()));
+    }
+
+    // moderation labels are passed on to the processors as labels, with a prefix to tell them apart
+    private static List<Label> withModeration(List<Label> labels, List<ModerationLabel> flagged) {
+        List<Label> all = new ArrayList<>(labels.size() + flagged.size());
+        all.addAll(labels);
+        for (ModerationLabel label : flagged) {
+            all.add(new Label().withName(moderationPrefix + label.getName()).withConfidence(label.getConfidence()));
+        }
+        return all;
+    }
+
+    private static Image s3Image(ScanMessage job) {
+        return new Image().withS3Object(new S3Object().withBucket(job.bucket()).withName(job.key()));
+    }
+
+    private DetectLabelsRequest labelsRequest(Image image) {
+        return new DetectLabelsRequest().withImage(image).withMinConfidence(minConfidence);
+    }
+
+    private DetectModerationLabelsRequest moderationRequest(Image image) {
+        return new DetectModerationLabelsRequest().withImage(image).withMinConfidence(minConfidence);
+    }
+
+    // Calls Rekognition within the adaptive concurrency limit. Throttled calls are retried with jittered exponential
+    // backoff, without holding a permit while backing off.
+    private <R> R call(Supplier<R> rekognitionCall, LatencyHistogram latency) {
+        for (int attempt = 1; ; attempt++) {
+            acquirePermit();
+            long start = System.nanoTime();
+            try {
+                R result = rekognitionCall.get();
+                limiter.onSuccess(System.nanoTime() - start);
+                return result;
+            } catch (AmazonServiceException e) {
+                if (!isThrottle(e) || attempt >= maxAttempts)
+                    throw e;
+                limiter.onThrottle();
+            } finally {
+                latency.recordSince(start);
+                limiter.release();
+            }
+
+            numRetries.incrementAndGet();
+            pause(backoff(attempt));
+        }
+    }
+
+    // full jitter: a random wait up to an exponentially growing ceiling
+    static long backoff(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, backoffMillis << attempt);
+        return ThreadLocalRandom.current().nextLong(ceiling);
+    }
+
+    private void acquirePermit() {
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a Rekognition permit", e);
+        }
+    }
+
+    static boolean isThrottle(AmazonServiceException e) {
+        return e instanceof ProvisionedThroughputExceededException
+            || e instanceof ThrottlingException
+            || RetryUtils.isThrottlingException(e);
+    }
+
     public Processor addLabelProcessor(LabelProcessor processor) {
         processors.add(processor);
         return this;
     }
 
+    // A queue jobs come from: its acking, and its share of the slots and metrics
+    private static class Source {
+        final int index;
+        final String name;
+        final String url; // null when taking jobs from a scanner
+        final MessageTracker ack;
+        int weight = 1;
+        final LongAdder received;
+        final LongAdder deleted;
+        final LatencyHistogram lag; // sent to received
+        final AtomicLong backlog = new AtomicLong(-1); // messages waiting, as of the last status log
+
+        Source(int index, String name, String url, MessageTracker ack, Metrics metrics) {
+            this.index = index;
+            this.name = name;
+            this.url = url;
+            this.ack = ack;
+            received = metrics.counter("queue." + name + ".received");
+            deleted = metrics.counter("queue." + name + ".deleted");
+            lag = metrics.histogram("queue." + name + ".lag");
+        }
+
+        void received(Message message) {
+            ack.received(message);
+            received.increment();
+            String sent = message.getAttributes() == null ? null : message.getAttributes().get(sentTimestamp);
+            if (sent != null)
+                lag.record(Math.max(0, System.currentTimeMillis() - Long.parseLong(sent)) * 1000000);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: received %s, deleted %s, backlog %s, lag p50/p99 %sms/%sms", name,
+                received.sum(), deleted.sum(), backlog.get(), lag.percentileMicros(0.5) / 1000,
+                lag.percentileMicros(0.99) / 1000);
+        }
+    }
+
     static public class PathSplit {
         public final String bucket;
         public final String key;
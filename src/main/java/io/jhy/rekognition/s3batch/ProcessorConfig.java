@@ -14,20 +14,113 @@ public class ProcessorConfig {
     private boolean threw;
 
     public ProcessorConfig(String[] inputArgs) {
+        this(inputArgs, true);
+    }
+
+    /**
+     * @param needQueue false when processing straight from a scanner, so -queue isn't required
+     */
+    ProcessorConfig(String[] inputArgs, boolean needQueue) {
         Options o = new Options();
-        o.addOption(Option.builder("queue").desc("SQS Queue to fetch tasks from.")
-            .hasArg().required().build());
+        o.addOption(Option.builder("queue")
+            .desc("SQS Queue to fetch tasks from, or comma separated queues each with an optional :weight, "
+                + "e.g. uploads:9,backfill:1, to share the workers between. Default weight 1")
+            .hasArg().required(needQueue).build());
+        o.addOption(Option.builder("priority")
+            .desc("With several -queue, take from the first listed whenever it has messages, then the next, "
+                + "rather than sharing by weight.").build());
         o.addOption(
             Option.builder("profile").desc("AWS Credential Profile Name (in ~/.aws/credentials). Default 'default'")
                 .hasArg().build());
         o.addOption(Option.builder("help").desc("Get this help.").build());
         o.addOption(Option.builder("dynamo").desc("Dynamo DB table to optionally insert into.").hasArg().build());
+        o.addOption(Option.builder("dynamobatch")
+            .desc("Write to Dynamo DB in batches of 25 rather than an item at a time.").build());
+        o.addOption(Option.builder("dynamolinger")
+            .desc("With -dynamobatch, max millis to wait for a batch to fill. Default 100").hasArg().build());
+        o.addOption(Option.builder("dynamobuffer")
+            .desc("With -dynamobatch, max number of items waiting to be written. Default 1000").hasArg().build());
         o.addOption(Option.builder("cloudsearch").desc("Cloud Search index to optionally insert into.").hasArg().build());
+        o.addOption(Option.builder("cloudsearchbatch")
+            .desc("Upload to Cloud Search in batches of up to 5MB rather than a document at a time.").build());
+        o.addOption(Option.builder("cloudsearchlinger")
+            .desc("With -cloudsearchbatch, max millis to wait for a batch to fill. Default 1000").hasArg().build());
+        o.addOption(Option.builder("cloudsearchbuffer")
+            .desc("With -cloudsearchbatch, max MB of documents waiting to be uploaded, up to 2047. Default 20").hasArg().build());
         o.addOption(Option.builder("tagS3").desc("Write detected labels back to S3 as Object Tags.").build());
         o.addOption(Option.builder("tagprefix").desc("S3 label tag prefix. Default 'rek.'").hasArg().build());
+        o.addOption(Option.builder("tagthreads")
+            .desc("Threads making S3 tagging calls, in place of -sinkthreads. Default 10").hasArg().build());
+        o.addOption(Option.builder("labellog")
+            .desc("Directory to append detected labels to, in compact binary segment files.").hasArg().build());
+        o.addOption(Option.builder("labellogsegment")
+            .desc("With -labellog, MB to write to a segment file before starting the next. Default 64").hasArg()
+            .build());
+        o.addOption(Option.builder("labelindex")
+            .desc("Directory to keep a local label index in, to query with -query.").hasArg().build());
+        o.addOption(Option.builder("labelindexflush")
+            .desc("With -labelindex, millis between writes of new results to the index. Default 1000").hasArg()
+            .build());
+        o.addOption(Option.builder("labelindeximages")
+            .desc("With -labelindex, number of images to size the index's path lookup for. Default 10000000")
+            .hasArg().build());
+        o.addOption(Option.builder("dedup")
+            .desc("Ack messages for images processed recently without processing them again, and leave ones for "
+                + "images in flight on the queue until they're done.").build());
+        o.addOption(Option.builder("dedupwindow")
+            .desc("With -dedup, min seconds to remember processed images for. Default 600").hasArg().build());
+        o.addOption(Option.builder("dedupsize")
+            .desc("With -dedup, max number of processed images to remember. Default 1000000").hasArg().build());
         o.addOption(Option.builder("max").desc("Max number of images to index.").hasArg().build());
         o.addOption(
-            Option.builder("concurrency").desc("Number of concurrent Rekognition jobs. Default 20").hasArg().build());
+            Option.builder("concurrency").desc("Max number of concurrent Rekognition jobs. Default 20").hasArg().build());
+        o.addOption(Option.builder("minconcurrency")
+            .desc("Min number of concurrent Rekognition jobs when backing off from throttling. Default 1").hasArg()
+            .build());
+        o.addOption(Option.builder("pollers")
+            .desc("Number of threads receiving messages from each SQS queue. Default 2").hasArg().build());
+        o.addOption(Option.builder("async")
+            .desc("Run jobs as chains of async SDK calls instead of one worker thread per job.").build());
+        o.addOption(Option.builder("maxinflight").desc("With -async, max number of jobs in flight. Default 1000")
+            .hasArg().build());
+        o.addOption(Option.builder("sinkthreads")
+            .desc("Threads for each processor that doesn't support async. Default 10").hasArg().build());
+        o.addOption(Option.builder("sinkqueue")
+            .desc("Number of jobs that can queue for each processor. Default 100").hasArg().build());
+        o.addOption(Option.builder("sinkwait")
+            .desc("Max millis to wait for room in a processor's queue before failing the job. Default 1000").hasArg()
+            .build());
+        o.addOption(Option.builder("cache")
+            .desc("Directory to keep detected labels in, to reuse for images seen before.").hasArg().build());
+        o.addOption(Option.builder("cachesize")
+            .desc("With -cache, number of results to also hold in memory. Default 10000").hasArg().build());
+        o.addOption(Option.builder("cachekeys")
+            .desc("With -cache, max number of results to keep on disk. The older half are dropped when it's full. "
+                + "Default 1000000").hasArg().build());
+        o.addOption(Option.builder("bytes")
+            .desc("Fetch each image from S3 once and send Rekognition the bytes, rather than the S3 location.")
+            .build());
+        o.addOption(Option.builder("downscale")
+            .desc("With -bytes, downscale images larger than this many bytes before sending. Default 5242880, "
+                + "Rekognition's limit for image bytes").hasArg().build());
+        o.addOption(Option.builder("maxfetch")
+            .desc("With -bytes, max image size in bytes to fetch from S3, downscaling it to fit. Larger images are "
+                + "skipped. Default 104857600").hasArg().build());
+        o.addOption(Option.builder("maxpixels")
+            .desc("With -bytes, max number of pixels in an image to decode for downscaling. Larger images are "
+                + "skipped. Default 50000000").hasArg().build());
+        o.addOption(Option.builder("decodes")
+            .desc("With -bytes, max number of images decoded for downscaling at once. Default 2").hasArg().build());
+        o.addOption(Option.builder("buffers")
+            .desc("With -bytes, max number of images held in memory at once. Default the -concurrency").hasArg()
+            .build());
+        o.addOption(Option.builder("moderation")
+            .desc("Also detect moderation labels, passed on as labels prefixed 'moderation.'").build());
+        o.addOption(Option.builder("directqueue")
+            .desc("With -direct, max number of images waiting between the scanner and processor. Default 1000")
+            .hasArg().build());
+        o.addOption(Option.builder("metricsport")
+            .desc("Serve metrics for Prometheus at http://localhost:<port>/metrics. Off by default").hasArg().build());
         o.addOption(Option.builder("disablecerts").desc("Disable certificate checking.").build());
         o.addOption(Option.builder("endpoint").desc("Override the Rekognition endpoint.").hasArg().build());
         o.addOption(Option.builder("confidence").desc("Minimum confidence in labels. Default 70.").hasArg().build());
@@ -50,6 +143,10 @@ public class ProcessorConfig {
         return args.getOptionValue("queue");
     }
 
+    boolean priority() {
+        return args.hasOption("priority");
+    }
+
     String max() {
         return args.getOptionValue("max", "-1");
     }
@@ -62,6 +159,18 @@ public class ProcessorConfig {
         return args.hasOption("cloudsearch");
     }
 
+    boolean cloudSearchBatch() {
+        return args.hasOption("cloudsearchbatch");
+    }
+
+    String cloudSearchLinger() {
+        return args.getOptionValue("cloudsearchlinger", "1000");
+    }
+
+    String cloudSearchBuffer() {
+        return args.getOptionValue("cloudsearchbuffer", "20");
+    }
+
     String dynamo() {
         return args.getOptionValue("dynamo");
     }
@@ -70,6 +179,18 @@ public class ProcessorConfig {
         return args.hasOption("dynamo");
     }
 
+    boolean dynamoBatch() {
+        return args.hasOption("dynamobatch");
+    }
+
+    String dynamoLinger() {
+        return args.getOptionValue("dynamolinger", "100");
+    }
+
+    String dynamoBuffer() {
+        return args.getOptionValue("dynamobuffer", "1000");
+    }
+
     boolean wantTags3() {
         return args.hasOption("tagS3");
     }
@@ -78,6 +199,50 @@ public class ProcessorConfig {
         return args.getOptionValue("tagprefix", "rek.");
     }
 
+    String tagThreads() {
+        return args.getOptionValue("tagthreads", "10");
+    }
+
+    boolean wantLabelLog() {
+        return args.hasOption("labellog");
+    }
+
+    String labelLog() {
+        return args.getOptionValue("labellog");
+    }
+
+    String labelLogSegment() {
+        return args.getOptionValue("labellogsegment", "64");
+    }
+
+    boolean dedup() {
+        return args.hasOption("dedup");
+    }
+
+    String dedupWindow() {
+        return args.getOptionValue("dedupwindow", "600");
+    }
+
+    String dedupSize() {
+        return args.getOptionValue("dedupsize", "1000000");
+    }
+
+    boolean wantLabelIndex() {
+        return args.hasOption("labelindex");
+    }
+
+    String labelIndex() {
+        return args.getOptionValue("labelindex");
+    }
+
+    String labelIndexFlush() {
+        return args.getOptionValue("labelindexflush", "1000");
+    }
+
+    String labelIndexImages() {
+        return args.getOptionValue("labelindeximages", "10000000");
+    }
+
     boolean disableCerts() {
         return args.hasOption("disablecerts");
     }
@@ -98,6 +263,86 @@ public class ProcessorConfig {
         return args.getOptionValue("concurrency", "20");
     }
 
+    String minConcurrency() {
+        return args.getOptionValue("minconcurrency", "1");
+    }
+
+    String pollers() {
+        return args.getOptionValue("pollers", "2");
+    }
+
+    boolean async() {
+        return args.hasOption("async");
+    }
+
+    String maxInFlight() {
+        return args.getOptionValue("maxinflight", "1000");
+    }
+
+    String sinkThreads() {
+        return args.getOptionValue("sinkthreads", "10");
+    }
+
+    String sinkQueue() {
+        return args.getOptionValue("sinkqueue", "100");
+    }
+
+    String sinkWait() {
+        return args.getOptionValue("sinkwait", "1000");
+    }
+
+    boolean wantCache() {
+        return args.hasOption("cache");
+    }
+
+    String cache() {
+        return args.getOptionValue("cache");
+    }
+
+    String cacheSize() {
+        return args.getOptionValue("cachesize", "10000");
+    }
+
+    String cacheKeys() {
+        return args.getOptionValue("cachekeys", "1000000");
+    }
+
+    boolean bytes() {
+        return args.hasOption("bytes");
+    }
+
+    String downscale() {
+        return args.getOptionValue("downscale", Long.toString(ImageFetcher.maxRequestBytes));
+    }
+
+    String maxFetch() {
+        return args.getOptionValue("maxfetch", "104857600");
+    }
+
+    String maxPixels() {
+        return args.getOptionValue("maxpixels", "50000000");
+    }
+
+    String decodes() {
+        return args.getOptionValue("decodes", "2");
+    }
+
+    String buffers() {
+        return args.getOptionValue("buffers", concurrency());
+    }
+
+    boolean moderation() {
+        return args.hasOption("moderation");
+    }
+
+    String directQueue() {
+        return args.getOptionValue("directqueue", "1000");
+    }
+
+    String metricsPort() {
+        return args.getOptionValue("metricsport", "-1");
+    }
+
     boolean needHelp() {
         return threw || args.hasOption("help");
     }
@@ -0,0 +1,66 @@
+package io.jhy.rekognition.s3batch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.commons.codec.Charsets;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The persisted position of a scan: the shard layout, how far each shard has been listed, and the number of images
+ * enqueued so far. Saved as JSON.
+ * <p>
+ *     Saves are atomic: the checkpoint is written and synced to a temp file next to the target, which is then moved
+ *     over the target. A crash at any point leaves either the previous checkpoint or the new one, never a partial
+ *     file.
+ * </p>
+ */
+class ScanCheckpoint {
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    String bucket;
+    String prefix;
+    long numSeen;
+    List<ScanShard> shards;
+
+    ScanCheckpoint(String bucket, String prefix, long numSeen, List<ScanShard> shards) {
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.numSeen = numSeen;
+        this.shards = shards;
+    }
+
+    static ScanCheckpoint load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, Charsets.UTF_8)) {
+            ScanCheckpoint checkpoint = gson.fromJson(reader, ScanCheckpoint.class);
+            if (checkpoint == null || checkpoint.shards == null)
+                throw new IOException("Empty checkpoint " + file);
+            return checkpoint;
+        } catch (JsonParseException e) {
+            throw new IOException("Could not parse checkpoint " + file, e);
+        }
+    }
+
+    void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] json = gson.toJson(this).getBytes(Charsets.UTF_8);
+        try (FileChannel out = FileChannel.open(tmp,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(json);
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
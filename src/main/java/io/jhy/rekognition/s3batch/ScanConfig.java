@@ -9,12 +9,20 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 public class ScanConfig {
-    private static final String defaultFilter = "\\.(jpg|jpeg|png)$";
+    static final String defaultFilter = "\\.(jpg|jpeg|png)$";
     private final Options options;
     private CommandLine args;
     private boolean threw;
+    private String defaultMaxSize = "15728640";
 
     public ScanConfig(String[] inputArgs) {
+        this(inputArgs, true);
+    }
+
+    /**
+     * @param needQueue false when scanning straight into a processor, so -queue isn't required
+     */
+    ScanConfig(String[] inputArgs, boolean needQueue) {
         Options o = new Options();
         o.addOption(Option.builder("bucket").desc("S3 Bucket Name").hasArg().required().build());
         o.addOption(Option.builder("prefix").desc("S3 Bucket Prefix").hasArg().build());
@@ -24,8 +32,34 @@ public class ScanConfig {
             Option.builder("profile").desc("AWS Credential Profile Name (in ~/.aws/credentials). Default 'default'")
                 .hasArg().build());
         o.addOption(Option.builder("queue").desc("SQS Queue to populate. Will create if it doesn't exit.")
-            .hasArg().required().build());
+            .hasArg().required(needQueue).build());
         o.addOption(Option.builder("max").desc("Max number of images to add to queue.").hasArg().build());
+        o.addOption(
+            Option.builder("senders").desc("Number of concurrent SQS batch senders. Default 8").hasArg().build());
+        o.addOption(Option.builder("sharddelim")
+            .desc("Shard the listing by the top-level prefixes found with this delimiter (e.g. '/').").hasArg().build());
+        o.addOption(Option.builder("shardchars")
+            .desc("Shard the listing by splitting the keys after the prefix at these chars (e.g. '0123456789abcdef').")
+            .hasArg().build());
+        o.addOption(
+            Option.builder("listthreads").desc("Number of shards (or inventory files) to list concurrently. Default 4").hasArg().build());
+        o.addOption(Option.builder("checkpoint").desc("File to periodically save the scan position to.").hasArg().build());
+        o.addOption(Option.builder("checkpointsecs").desc("Seconds between checkpoint saves. Default 30").hasArg()
+            .build());
+        o.addOption(Option.builder("resume").desc("Resume the scan from the -checkpoint file.").build());
+        o.addOption(Option.builder("index")
+            .desc("Index file of previously enqueued objects. Only new or changed objects are enqueued.").hasArg().build());
+        o.addOption(Option.builder("indexsize").desc("Expected number of objects in the index. Default 1000000")
+            .hasArg().build());
+        o.addOption(Option.builder("inventory")
+            .desc("Read objects from this local S3 Inventory manifest.json instead of listing the bucket.").hasArg()
+            .build());
+        o.addOption(Option.builder("minsize").desc("Min object size in bytes to enqueue. Default 0").hasArg().build());
+        o.addOption(Option.builder("maxsize")
+            .desc("Max object size in bytes to enqueue. Default 15728640, Rekognition's limit for S3 images, or with "
+                + "-direct and -bytes the processor's -maxfetch").hasArg().build());
+        o.addOption(Option.builder("plainmessages")
+            .desc("Queue plain bucket/key messages, without object metadata, for older processors.").build());
         o.addOption(Option.builder("help").desc("Get this help.").build());
         options = o;
 
@@ -61,8 +95,87 @@ public class ScanConfig {
         return args.getOptionValue("max", "-1");
     }
 
+    String minSize() {
+        return args.getOptionValue("minsize", "0");
+    }
+
+    String maxSize() {
+        return args.getOptionValue("maxsize", defaultMaxSize);
+    }
+
+    /**
+     * Sets the -maxsize used when none is given, e.g. to the processor's own limit when scanning straight into it.
+     */
+    void defaultMaxSize(String bytes) {
+        defaultMaxSize = bytes;
+    }
+
+    boolean plainMessages() {
+        return args.hasOption("plainmessages");
+    }
+
+    String senders() {
+        return args.getOptionValue("senders", "8");
+    }
+
+    boolean wantShardDelimiter() {
+        return args.hasOption("sharddelim");
+    }
+
+    String shardDelimiter() {
+        return args.getOptionValue("sharddelim");
+    }
+
+    boolean wantShardChars() {
+        return args.hasOption("shardchars");
+    }
+
+    String shardChars() {
+        return args.getOptionValue("shardchars");
+    }
+
+    String listThreads() {
+        return args.getOptionValue("listthreads", "4");
+    }
+
+    boolean wantCheckpoint() {
+        return args.hasOption("checkpoint");
+    }
+
+    String checkpoint() {
+        return args.getOptionValue("checkpoint");
+    }
+
+    String checkpointSecs() {
+        return args.getOptionValue("checkpointsecs", "30");
+    }
+
+    boolean resume() {
+        return args.hasOption("resume");
+    }
+
+    boolean wantIndex() {
+        return args.hasOption("index");
+    }
+
+    String index() {
+        return args.getOptionValue("index");
+    }
+
+    String indexSize() {
+        return args.getOptionValue("indexsize", "1000000");
+    }
+
+    boolean wantInventory() {
+        return args.hasOption("inventory");
+    }
+
+    String inventory() {
+        return args.getOptionValue("inventory");
+    }
+
     boolean needHelp() {
-        return threw || args.hasOption("help");
+        return threw || args.hasOption("help") || (resume() && !wantCheckpoint());
     }
 
     void printHelp() {
@@ -0,0 +1,74 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.commons.codec.Charsets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+/**
+ * Remembers the version (ETag) of every object previously enqueued, so that re-scans of a bucket only enqueue objects
+ * that are new or have changed. Stored as 64 bit hashes of the path and of the ETag in a {@link MappedLongMap}, i.e.
+ * 16 bytes per object on disk and nothing per object on the heap.
+ */
+class ScanIndex implements Closeable {
+    private static HashFunction hash = Hashing.murmur3_128();
+    private static Charset charset = Charsets.UTF_8;
+
+    private final MappedLongMap map;
+
+    ScanIndex(Path file, long expectedKeys) throws IOException {
+        map = MappedLongMap.open(file, expectedKeys);
+        Logger.Info("Opened scan index %s with %s objects.", file, map.size());
+    }
+
+    /**
+     * Checks if the object is new, or has a different ETag than when it was last recorded.
+     */
+    boolean isChanged(S3ObjectSummary object) {
+        return map.get(pathHash(object), 0) != versionHash(object);
+    }
+
+    /**
+     * Record the current version of the object. Call once it has been enqueued.
+     */
+    void update(S3ObjectSummary object) {
+        try {
+            map.put(pathHash(object), versionHash(object));
+        } catch (IOException e) {
+            Logger.Info("Could not update scan index for %s: %s", object.getKey(), e);
+        }
+    }
+
+    void force() {
+        map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.close();
+    }
+
+    // 0 is the missing marker in the map (and reserved as a key), so neither hash may be 0
+    private static long pathHash(S3ObjectSummary object) {
+        long h = hash.newHasher()
+            .putString(object.getBucketName(), charset)
+            .putChar('/')
+            .putString(object.getKey(), charset)
+            .hash().asLong();
+        return h != 0 ? h : 1;
+    }
+
+    private static long versionHash(S3ObjectSummary object) {
+        long h;
+        if (object.getETag() != null)
+            h = hash.hashString(object.getETag(), charset).asLong();
+        else
+            h = hash.newHasher().putLong(object.getSize()).putLong(object.getLastModified().getTime()).hash().asLong();
+        return h != 0 ? h : 1;
+    }
+}
@@ -0,0 +1,104 @@
+package io.jhy.rekognition.s3batch;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * The job the Scanner queues for an image: where it is, plus what the listing said about it, so the processor knows
+ * the object's size and version (ETag) without asking S3. Sent as compact JSON, e.g.
+ * <pre>
+ *     {"b":"bucket","k":"photos/a.jpg","s":48213,"e":"9b2cf535f27731c974343645a3985328","m":1497312000000}
+ * </pre>
+ * Plain {@code bucket/key} bodies, as queued by earlier versions or by hand, are still understood; they just don't
+ * carry the metadata.
+ */
+public class ScanMessage {
+    private static final Gson gson = new Gson();
+
+    @SerializedName("b")
+    private String bucket;
+    @SerializedName("k")
+    private String key;
+    @SerializedName("s")
+    private Long size;
+    @SerializedName("e")
+    private String etag;
+    @SerializedName("m")
+    private Long lastModified; // epoch millis
+
+    private ScanMessage(String bucket, String key) {
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    static ScanMessage of(S3ObjectSummary object) {
+        ScanMessage message = new ScanMessage(object.getBucketName(), object.getKey());
+        message.size = object.getSize();
+        message.etag = object.getETag();
+        if (object.getLastModified() != null)
+            message.lastModified = object.getLastModified().getTime();
+        return message;
+    }
+
+    /**
+     * Reads a message body, either JSON or a plain bucket/key path.
+     */
+    public static ScanMessage parse(String body) {
+        if (body.startsWith("{")) {
+            try {
+                ScanMessage message = gson.fromJson(body, ScanMessage.class);
+                if (message != null && message.bucket != null && message.key != null)
+                    return message;
+            } catch (JsonParseException e) {
+                // fall through; a bucket name can't start with '{', so this will fail there too
+            }
+            throw new IllegalArgumentException("Unreadable scan message: " + body);
+        }
+        Processor.PathSplit path = new Processor.PathSplit(body);
+        return new ScanMessage(path.bucket, path.key);
+    }
+
+    String toJson() {
+        return gson.toJson(this);
+    }
+
+    public String bucket() {
+        return bucket;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    /**
+     * The bucket/key path, as passed to the LabelProcessors.
+     */
+    public String path() {
+        return bucket + "/" + key;
+    }
+
+    /**
+     * Size in bytes, or null if not known.
+     */
+    public Long size() {
+        return size;
+    }
+
+    /**
+     * The ETag at scan time, or null if not known.
+     */
+    public String etag() {
+        return etag;
+    }
+
+    public Long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return path();
+    }
+}
@@ -0,0 +1,55 @@
+package io.jhy.rekognition.s3batch;
+
+/**
+ * A slice of the bucket's key space that can be listed independently of the others. A shard lists the keys under
+ * {@code prefix} that sort after {@code after} (exclusive) and up to {@code upTo} (inclusive). Either bound may be
+ * null for an open end. If {@code delimiter} is set, only the objects directly under the prefix are listed (used for
+ * the objects that sit next to the top-level prefixes, which get their own shards).
+ * <p>
+ *     {@code marker} and {@code done} track how far the shard has been listed, so that a checkpointed scan can resume
+ *     from there. They are only updated by the shard's lister while it holds the scanner's page lock.
+ * </p>
+ */
+class ScanShard {
+    final String prefix;
+    final String after;
+    final String upTo;
+    final String delimiter;
+    String marker;
+    boolean done;
+
+    ScanShard(String prefix, String after, String upTo, String delimiter) {
+        this.prefix = prefix;
+        this.after = after;
+        this.upTo = upTo;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * The marker to start (or resume) listing from.
+     */
+    String startMarker() {
+        return marker != null ? marker : after;
+    }
+
+    /**
+     * Checks if the key sorts beyond this shard's upper bound. Note that S3 lists in UTF-8 byte order, which matches
+     * String order for everything but supplementary characters.
+     */
+    boolean isPastEnd(String key) {
+        return upTo != null && key.compareTo(upTo) > 0;
+    }
+
+    ScanShard copy() {
+        ScanShard copy = new ScanShard(prefix, after, upTo, delimiter);
+        copy.marker = marker;
+        copy.done = done;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s (%s, %s]%s]", prefix, after == null ? "" : after, upTo == null ? "" : upTo,
+            delimiter == null ? "" : " delimited by " + delimiter);
+    }
+}
@@ -1,25 +1,45 @@
 package io.jhy.rekognition.s3batch;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
 public class Scanner {
     private AmazonS3Client s3;
-    private AmazonSQSClient sqs;
-    private String queueUrl;
+    private JobQueue enqueuer;
     private ScanConfig opt;
     private AtomicLong numSeen = new AtomicLong(0);
     private long max;
+    private volatile boolean reachedMax;
+    private boolean keptCheckpoint; // a job was lost, so checkpoints stopped moving; guarded by pageLock
+    private Path checkpointFile;
+    private ScanIndex index;
+    private AtomicLong numUnchanged = new AtomicLong(0);
+    private AtomicLong numOutOfRange = new AtomicLong(0);
+    private long minSize;
+    private long maxSize;
+    private boolean plainMessages;
+    private final ReadWriteLock pageLock = new ReentrantReadWriteLock();
     private Pattern filter;
 
     public static void main(String[] args) {
@@ -34,60 +54,338 @@ public class Scanner {
     }
 
     public Scanner(ScanConfig config) {
+        this(config, null, AwsClients.forProfile(config.profile(),
+            Integer.parseInt(config.listThreads()) + Integer.parseInt(config.senders())));
+    }
+
+    /**
+     * Scans into the given queue, or to the SQS queue in the config if null, with the given clients.
+     */
+    Scanner(ScanConfig config, JobQueue queue, AwsClients clients) {
         opt = config;
-        ProfileCredentialsProvider creds = new ProfileCredentialsProvider(opt.profile());
-        creds.getCredentials(); // credible credential criteria
-        s3 = new AmazonS3Client(creds);
-        sqs = new AmazonSQSClient(creds);
+        s3 = clients.s3();
 
-        CreateQueueResult queueResult = sqs.createQueue(opt.queue());
-        queueUrl = queueResult.getQueueUrl();
+        if (queue != null) {
+            enqueuer = queue;
+        } else {
+            AmazonSQSClient sqs = clients.sqs();
+            CreateQueueResult queueResult = sqs.createQueue(opt.queue());
+            enqueuer = new Enqueuer(sqs, queueResult.getQueueUrl(), Integer.parseInt(opt.senders()));
+        }
 
-        filter = Pattern.compile(opt.filter(), Pattern.CASE_INSENSITIVE);
+        filter = compileFilter(opt.filter());
         max = Long.parseLong(opt.max());
+        minSize = Long.parseLong(opt.minSize());
+        maxSize = Long.parseLong(opt.maxSize());
+        plainMessages = opt.plainMessages();
+        if (opt.wantCheckpoint())
+            checkpointFile = Paths.get(opt.checkpoint());
+        if (opt.wantIndex()) {
+            try {
+                index = new ScanIndex(Paths.get(opt.index()), Long.parseLong(opt.indexSize()));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not open scan index: " + e.getMessage(), e);
+            }
+        }
     }
 
     public void scanBucket() {
-        ListObjectsRequest listReq = new ListObjectsRequest()
-            .withPrefix(opt.prefix())
-            .withBucketName(opt.bucket());
+        if (opt.wantInventory()) {
+            scanInventory();
+            return;
+        }
 
         Logger.Info("Scanning S3 bucket %s %s", opt.bucket(), opt.prefix());
-        ObjectListing listing = s3.listObjects(listReq);
-        boolean ok = processObjects(listing.getObjectSummaries());
+        List<ScanShard> shards = opt.resume() ? resumeShards() : findShards();
+        ScheduledExecutorService checkpointer = null;
+        if (checkpointFile != null) {
+            long interval = Long.parseLong(opt.checkpointSecs());
+            checkpointer = Executors.newSingleThreadScheduledExecutor();
+            checkpointer.scheduleWithFixedDelay(() -> commitCheckpoint(shards), interval, interval, TimeUnit.SECONDS);
+        }
 
-        while (ok && listing.isTruncated()) {
-            listing = s3.listNextBatchOfObjects(listing);
-            ok = processObjects(listing.getObjectSummaries());
+        try {
+            listShards(shards);
+        } finally {
+            if (checkpointer != null)
+                checkpointer.shutdownNow();
+            enqueuer.close();
+            closeIndex();
         }
+        if (checkpointFile != null)
+            commitCheckpoint(shards);
+        Logger.Info("Completed scan, added %s images to the processing queue.", numSeen.get());
+        logSkipped();
+        enqueuer.logThroughput();
+    }
 
+    /**
+     * Reads the objects from an S3 Inventory report on local disk, rather than listing the bucket. Rows go through the
+     * same filter, index and enqueuer as listed objects.
+     */
+    public void scanInventory() {
+        String prefix = opt.prefix();
+        Logger.Info("Scanning S3 inventory %s %s", opt.inventory(), prefix);
+        try {
+            InventoryReader inventory = new InventoryReader(Paths.get(opt.inventory()));
+            Logger.Info("Reading %s inventory files, %s at a time.", inventory.numFiles(), opt.listThreads());
+            inventory.read(Integer.parseInt(opt.listThreads()),
+                object -> !object.getKey().startsWith(prefix) || processObject(object));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read inventory: " + e.getMessage(), e);
+        } finally {
+            enqueuer.close();
+            closeIndex();
+        }
         Logger.Info("Completed scan, added %s images to the processing queue.", numSeen.get());
+        logSkipped();
+        enqueuer.logThroughput();
+    }
+
+    private void logSkipped() {
+        if (index != null)
+            Logger.Info("Skipped %s unchanged images.", numUnchanged.get());
+        Logger.Info("Skipped %s images outside the size limits.", numOutOfRange.get());
+    }
+
+    private void listShards(List<ScanShard> shards) {
+        if (shards.size() == 1) {
+            listShard(shards.get(0));
+            return;
+        }
+
+        int listThreads = Math.min(Integer.parseInt(opt.listThreads()), shards.size());
+        Logger.Info("Listing %s shards, %s at a time.", shards.size(), listThreads);
+        ExecutorService listers = Executors.newFixedThreadPool(listThreads);
+        try {
+            List<Future<?>> results = new ArrayList<>(shards.size());
+            for (ScanShard shard : shards) {
+                results.add(listers.submit(() -> listShard(shard)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            listers.shutdownNow();
+        }
+    }
+
+    // splits the listing up by the configured shard mode, or returns a single shard for the whole prefix
+    private List<ScanShard> findShards() {
+        String prefix = opt.prefix();
+        List<ScanShard> shards = new ArrayList<>();
+
+        if (opt.wantShardDelimiter()) {
+            // one shard per top-level prefix, plus one for the objects that sit alongside them
+            String delimiter = opt.shardDelimiter();
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                .withBucketName(opt.bucket())
+                .withPrefix(prefix)
+                .withDelimiter(delimiter));
+            while (true) {
+                for (String commonPrefix : listing.getCommonPrefixes()) {
+                    shards.add(new ScanShard(commonPrefix, null, null, null));
+                }
+                if (!listing.isTruncated())
+                    break;
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+            shards.add(new ScanShard(prefix, null, null, delimiter));
+        } else if (opt.wantShardChars()) {
+            // split the key space at each char: (start, prefix+c0], (prefix+c0, prefix+c1], ..., (prefix+cN, end)
+            char[] splits = opt.shardChars().toCharArray();
+            Arrays.sort(splits);
+            String after = null;
+            for (char split : splits) {
+                String upTo = prefix + split;
+                if (upTo.equals(after))
+                    continue; // dupe char
+                shards.add(new ScanShard(prefix, after, upTo, null));
+                after = upTo;
+            }
+            shards.add(new ScanShard(prefix, after, null, null));
+        } else {
+            shards.add(new ScanShard(prefix, null, null, null));
+        }
+        return shards;
+    }
+
+    // picks up the shard layout and positions from the last committed checkpoint
+    private List<ScanShard> resumeShards() {
+        ScanCheckpoint checkpoint;
+        try {
+            checkpoint = ScanCheckpoint.load(checkpointFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not resume from checkpoint: " + e.getMessage(), e);
+        }
+        if (!opt.bucket().equals(checkpoint.bucket) || !opt.prefix().equals(checkpoint.prefix))
+            throw new IllegalArgumentException(String.format("Checkpoint is for %s %s, not %s %s",
+                checkpoint.bucket, checkpoint.prefix, opt.bucket(), opt.prefix()));
+
+        numSeen.set(checkpoint.numSeen);
+        Logger.Info("Resuming scan from checkpoint: %s images already added, %s of %s shards remaining.",
+            checkpoint.numSeen, checkpoint.shards.stream().filter(shard -> !shard.done).count(),
+            checkpoint.shards.size());
+        return checkpoint.shards;
+    }
+
+    private void listShard(ScanShard shard) {
+        if (shard.done)
+            return;
+        Logger.Debug("Listing shard %s", shard);
+        ListObjectsRequest listReq = new ListObjectsRequest()
+            .withBucketName(opt.bucket())
+            .withPrefix(shard.prefix)
+            .withMarker(shard.startMarker())
+            .withDelimiter(shard.delimiter);
+
+        ObjectListing listing = s3.listObjects(listReq);
+        while (true) {
+            boolean more;
+            pageLock.readLock().lock();
+            try {
+                more = processObjects(shard, listing.getObjectSummaries()) && listing.isTruncated();
+                if (!stopped()) { // a page cut short by -max isn't complete, so doesn't move the marker
+                    shard.marker = nextMarker(listing, shard.marker);
+                    shard.done = !more;
+                }
+            } finally {
+                pageLock.readLock().unlock();
+            }
+            if (!more)
+                break;
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+    }
+
+    private static String nextMarker(ObjectListing listing, String current) {
+        if (listing.getNextMarker() != null) // only set on delimited listings
+            return listing.getNextMarker();
+        List<S3ObjectSummary> objects = listing.getObjectSummaries();
+        return objects.isEmpty() ? current : objects.get(objects.size() - 1).getKey();
     }
 
-    private boolean processObjects(List<S3ObjectSummary> objects) {
+    // Saves the position of each shard. Holding the write lock stops the listers between pages; waiting for the
+    // enqueuer means every page up to the saved markers is on the queue before the checkpoint claims it. Once a job
+    // has been lost, the saved markers would skip it on -resume, so the last checkpoint is kept instead.
+    private void commitCheckpoint(List<ScanShard> shards) {
+        pageLock.writeLock().lock();
+        try {
+            enqueuer.awaitSent();
+            long lost = enqueuer.numLost();
+            if (lost > 0) {
+                if (!keptCheckpoint)
+                    Logger.Info("%s images were dropped or failed, keeping the last checkpoint so -resume lists them "
+                        + "again.", lost);
+                keptCheckpoint = true;
+                return;
+            }
+            if (index != null)
+                index.force();
+            List<ScanShard> positions = new ArrayList<>(shards.size());
+            for (ScanShard shard : shards) {
+                positions.add(shard.copy());
+            }
+            new ScanCheckpoint(opt.bucket(), opt.prefix(), numSeen.get(), positions).save(checkpointFile);
+            Logger.Debug("Saved checkpoint at %s images.", numSeen.get());
+        } catch (IOException e) {
+            Logger.Info("Could not save checkpoint %s: %s", checkpointFile, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pageLock.writeLock().unlock();
+        }
+    }
+
+    // the enqueuer sends in the background, so this returns as soon as the page is batched up and the next page can be
+    // listed while the sends are in flight. Returns false when this shard should stop listing.
+    private boolean processObjects(ScanShard shard, List<S3ObjectSummary> objects) {
         Logger.Debug("Scanning next batch of %s ", objects.size());
-        objects
-            .parallelStream()
-            .filter(this::shouldEnqueue)
-            .forEach(object -> {
-                numSeen.incrementAndGet();
-                String path = object.getBucketName() + "/" + object.getKey();
-                Logger.Info("Posting: %s", path);
-
-                SendMessageRequest msg = new SendMessageRequest()
-                    .withQueueUrl(queueUrl)
-                    .withMessageBody(path);
-                sqs.sendMessage(msg);
-            });
-        if (max > -1L && numSeen.incrementAndGet() > max) {
-            Logger.Info("Added max jobs, quitting");
+        for (S3ObjectSummary object : objects) {
+            if (shard.isPastEnd(object.getKey()))
+                return false;
+            if (!processObject(object))
+                return false;
+        }
+        return !stopped();
+    }
+
+    // filters and enqueues a listed object. Returns false once -max has been reached, or nothing is taking jobs.
+    private boolean processObject(S3ObjectSummary object) {
+        if (enqueuer.isAbandoned())
             return false;
+        if (!shouldEnqueue(object))
+            return true;
+        if (object.getSize() < minSize || object.getSize() > maxSize) {
+            // Rekognition would only reject it
+            numOutOfRange.incrementAndGet();
+            Logger.Debug("Skipping %s, %s bytes is outside the size limits.", object.getKey(), object.getSize());
+            return true;
         }
+        if (index != null && !index.isChanged(object)) {
+            numUnchanged.incrementAndGet();
+            return true;
+        }
+        if (!reserve()) {
+            if (!reachedMax) {
+                reachedMax = true;
+                Logger.Info("Added max jobs, quitting");
+            }
+            return false;
+        }
+        ScanMessage message = ScanMessage.of(object);
+        Logger.Info("Posting: %s", message.path());
+        String body = plainMessages ? message.path() : message.toJson();
+        if (index != null)
+            enqueuer.add(body, () -> index.update(object)); // only recorded once it's actually on the queue
+        else
+            enqueuer.add(body);
+        return true;
+    }
+
+    private boolean stopped() {
+        return reachedMax || enqueuer.isAbandoned();
+    }
+
+    private void closeIndex() {
+        if (index == null)
+            return;
+        try {
+            index.close();
+        } catch (IOException e) {
+            Logger.Info("Could not close scan index: %s", e);
+        }
+    }
+
+    // counts the object against -max. Shards race on numSeen, so the check and increment must be atomic.
+    private boolean reserve() {
+        if (max < 0) {
+            numSeen.incrementAndGet();
+            return true;
+        }
+        long seen;
+        do {
+            seen = numSeen.get();
+            if (seen >= max)
+                return false;
+        } while (!numSeen.compareAndSet(seen, seen + 1));
         return true;
     }
 
     // todo - interface method passed in scanBucket if you need more than a regex
     private boolean shouldEnqueue(S3ObjectSummary object) {
-        return filter.matcher(object.getKey()).find();
+        return shouldEnqueue(filter, object.getKey());
+    }
+
+    static Pattern compileFilter(String regex) {
+        return Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    }
+
+    static boolean shouldEnqueue(Pattern filter, String key) {
+        return filter.matcher(key).find();
     }
 }
@@ -0,0 +1,99 @@
+package io.jhy.rekognition.s3batch;
+
+/**
+ * Shares the Processor's job slots among the queues it reads, in place of a plain semaphore. When a slot frees up and
+ * pollers of several queues are waiting for one, it goes to the queue that's next by weight, or with strict priority,
+ * to the first queue listed. A queue nobody is waiting for takes nothing, so the others use its share. A slot taken is
+ * held until released, though, including while the taker waits for messages: the Processor's pollers each hold one
+ * slot while long polling a quiet queue, and with strict priority, take it ahead of lower priority queues.
+ * <p>
+ *     Weighted sharing is stride scheduling: each queue has a pass, advanced by 1/weight for every slot it takes, and
+ *     the waiting queue with the lowest pass goes next. A queue that starts waiting again after being idle is moved up
+ *     to the current pass, so it doesn't get a burst of slots for the time it had nothing to do.
+ * </p>
+ */
+class SlotScheduler {
+    private final int total;
+    private final int[] weights;
+    private final boolean strict;
+    private final double[] pass;
+    private final int[] waiting; // pollers waiting, by queue
+    private double now; // the pass of the last queue to take slots
+    private int free;
+
+    /**
+     * @param weights relative shares of the slots, by queue
+     * @param strict whether to give slots to the earliest waiting queue, ignoring the weights
+     */
+    SlotScheduler(int slots, int[] weights, boolean strict) {
+        this.total = slots;
+        this.weights = weights.clone();
+        this.strict = strict;
+        this.pass = new double[weights.length];
+        this.waiting = new int[weights.length];
+        this.free = slots;
+    }
+
+    /**
+     * Waits for at least one slot to be free and the queue's turn, then takes up to max.
+     */
+    synchronized int acquire(int queue, int max) throws InterruptedException {
+        if (waiting[queue]++ == 0)
+            pass[queue] = Math.max(pass[queue], now);
+        try {
+            while (free == 0 || next() != queue) {
+                wait();
+            }
+        } finally {
+            waiting[queue]--;
+            notifyAll(); // another queue may be next now
+        }
+        int got = Math.min(max, free);
+        free -= got;
+        now = pass[queue];
+        pass[queue] += (double) got / weights[queue];
+        return got;
+    }
+
+    synchronized void release(int slots) {
+        if (slots <= 0)
+            return;
+        free += slots;
+        notifyAll();
+    }
+
+    /**
+     * Waits for every slot to be returned, and keeps them.
+     */
+    synchronized void acquireAll() {
+        boolean interrupted = false;
+        while (free < total) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        free = 0;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    synchronized int available() {
+        return free;
+    }
+
+    // the waiting queue to give the next slot to
+    private int next() {
+        int next = -1;
+        for (int i = 0; i < waiting.length; i++) {
+            if (waiting[i] == 0)
+                continue;
+            if (strict)
+                return i;
+            if (next < 0 || pass[i] < pass[next])
+                next = i;
+        }
+        return next;
+    }
+}
@@ -0,0 +1,15 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A LabelProcessor that can also process without blocking the caller, e.g. by using an async SDK client. The returned
+ * future completes once the labels are durably stored (or fails if they could not be), and the message is only
+ * acknowledged after that.
+ */
+public interface AsyncLabelProcessor extends LabelProcessor {
+    public CompletableFuture<Void> processAsync(List<Label> labels, String path);
+}
@@ -0,0 +1,122 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Isolates a LabelProcessor behind its own bounded queue, so that one slow or failing sink can't hold up the others,
+ * or the Rekognition workers. A blocking processor gets its own pool of threads; an async one is called directly, and
+ * only the number of its calls in flight is bounded.
+ * <p>
+ *     When the sink is full, a new job waits up to the offer timeout for room and is then rejected, failing just that
+ *     job (which leaves its message on the queue to be re-driven), rather than stalling the caller indefinitely.
+ * </p>
+ */
+public class Bulkhead implements AsyncLabelProcessor {
+    private final LabelProcessor processor;
+    private final String name;
+    private final int capacity;
+    private final Semaphore room; // queued + running
+    private final long offerMillis;
+    private final ExecutorService pool; // null for async processors
+    private final AtomicLong numRejected = new AtomicLong(0);
+    private final AtomicLong numFailed = new AtomicLong(0);
+
+    /**
+     * @param threads    threads to run a blocking processor on
+     * @param queueSize  jobs that can wait for a thread (or, for an async processor, added to threads as the max
+     *                   number of calls in flight)
+     * @param offerMillis how long to wait for room when full, before rejecting the job
+     */
+    public Bulkhead(LabelProcessor processor, int threads, int queueSize, long offerMillis) {
+        this.processor = processor;
+        this.name = processor.getClass().getSimpleName();
+        this.capacity = threads + queueSize;
+        this.offerMillis = offerMillis;
+        room = new Semaphore(capacity);
+        if (processor instanceof AsyncLabelProcessor) {
+            pool = null;
+        } else {
+            // the queue is bounded by the semaphore
+            pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        }
+    }
+
+    @Override
+    public void process(List<Label> labels, String path) {
+        Futures.await(processAsync(labels, path));
+    }
+
+    @Override
+    public CompletableFuture<Void> processAsync(List<Label> labels, String path) {
+        try {
+            if (!room.tryAcquire(offerMillis, TimeUnit.MILLISECONDS)) {
+                numRejected.incrementAndGet();
+                return Futures.failed(new RejectedExecutionException(name + " is full, " + capacity + " jobs queued"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
+
+        CompletableFuture<Void> done;
+        try {
+            if (pool != null)
+                done = CompletableFuture.runAsync(() -> processor.process(labels, path), pool);
+            else
+                done = ((AsyncLabelProcessor) processor).processAsync(labels, path);
+        } catch (RuntimeException e) {
+            done = Futures.failed(e);
+        }
+        return done.whenComplete((v, e) -> {
+            room.release();
+            if (e != null)
+                numFailed.incrementAndGet();
+        });
+    }
+
+    /**
+     * Waits for the queued jobs to finish, then closes the processor.
+     */
+    @Override
+    public void close() {
+        room.acquireUninterruptibly(capacity);
+        if (pool != null)
+            pool.shutdown();
+        processor.close();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Jobs queued or running in this sink.
+     */
+    public int depth() {
+        return capacity - room.availablePermits();
+    }
+
+    public long numRejected() {
+        return numRejected.get();
+    }
+
+    public long numFailed() {
+        return numFailed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s depth %s/%s, failed %s, rejected %s", name, depth(), capacity, numFailed(),
+            numRejected());
+    }
+}
@@ -0,0 +1,226 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudsearchdomain.AmazonCloudSearchDomain;
+import com.amazonaws.services.cloudsearchdomain.model.DocumentServiceException;
+import com.amazonaws.services.cloudsearchdomain.model.UploadDocumentsResult;
+import io.jhy.rekognition.s3batch.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects Cloud Search documents into batches, and uploads each batch in one call. A batch is sent when the next
+ * document would take it over the 5MB upload limit, or when it has waited the linger time.
+ * <p>
+ *     Cloud Search accepts or rejects a batch as a whole, so when a batch is rejected for its content it is split in
+ *     half and each half sent again, until the documents at fault are alone and can be failed on their own; the rest
+ *     of the batch still gets indexed. Throttled and server side failures are retried with jittered backoff instead.
+ *     Any other failure, e.g. bad credentials, fails the whole batch at once, as no document would fare better alone.
+ * </p>
+ * <p>
+ *     Each document returns a future that completes when it has been indexed. Memory is bounded by the bytes of
+ *     documents held; adds wait for room when it is full.
+ * </p>
+ */
+class CloudSearchBatcher {
+    static final int maxBatchBytes = 5 * 1024 * 1024;
+    static final int maxDocBytes = 1024 * 1024;
+    private static final int maxAttempts = 6;
+    private static final long backoffMillis = 200;
+    private static final long maxBackoffMillis = 20000;
+    private static final int uploaderThreads = 2; // the doc service throttles concurrent uploads early
+
+    private final AmazonCloudSearchDomain client;
+    private final long lingerMillis;
+    private final int maxBufferedBytes;
+    private final Semaphore room; // in bytes
+    private final ScheduledExecutorService uploaders;
+    private final AtomicLong numIndexed = new AtomicLong(0);
+    private final AtomicLong numRejected = new AtomicLong(0);
+    private final AtomicLong numRequests = new AtomicLong(0);
+    private final AtomicLong numSplits = new AtomicLong(0);
+    private List<Doc> batch = new ArrayList<>(); // guarded by this
+    private int batchBytes = 2; // []
+    private long generation; // counts batches taken, so a linger timer can tell if its batch already went
+    private boolean closed;
+
+    CloudSearchBatcher(AmazonCloudSearchDomain client, long lingerMillis, int maxBufferedBytes) {
+        this.client = client;
+        this.lingerMillis = lingerMillis;
+        this.maxBufferedBytes = Math.max(maxBatchBytes, maxBufferedBytes);
+        room = new Semaphore(this.maxBufferedBytes);
+        uploaders = new ScheduledThreadPoolExecutor(uploaderThreads);
+    }
+
+    /**
+     * Queue a document (a single JSON add or delete, not a list) to be uploaded, waiting if the buffer is full.
+     */
+    CompletableFuture<Void> add(String path, byte[] json) {
+        if (json.length > maxDocBytes)
+            return Futures.failed(new IllegalArgumentException(
+                "Document for " + path + " is " + json.length + " bytes, over the Cloud Search limit"));
+        try {
+            room.acquire(json.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
+
+        Doc doc = new Doc(path, json);
+        List<Doc> full = null;
+        synchronized (this) {
+            if (closed) {
+                room.release(json.length);
+                return Futures.failed(new IllegalStateException("Cloud Search uploads have been closed"));
+            }
+
+            if (!batch.isEmpty() && batchBytes + 1 + json.length > maxBatchBytes)
+                full = takeBatch();
+            batch.add(doc);
+            batchBytes += json.length + (batch.size() > 1 ? 1 : 0);
+            if (batch.size() == 1) {
+                long current = generation;
+                uploaders.schedule(() -> lingered(current), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            List<Doc> send = full;
+            uploaders.execute(() -> upload(send, 1));
+        }
+        return doc.indexed;
+    }
+
+    /**
+     * Upload what is buffered, and wait for every outstanding upload to finish.
+     */
+    void close() {
+        List<Doc> last;
+        synchronized (this) {
+            closed = true;
+            last = takeBatch();
+        }
+        if (!last.isEmpty())
+            uploaders.execute(() -> upload(last, 1));
+
+        room.acquireUninterruptibly(maxBufferedBytes); // all returned once every upload has completed
+        uploaders.shutdown();
+        Logger.Info("Indexed %s documents in %s requests, rejected %s, split %s batches.",
+            numIndexed.get(), numRequests.get(), numRejected.get(), numSplits.get());
+    }
+
+    // guarded by this
+    private List<Doc> takeBatch() {
+        List<Doc> taken = batch;
+        batch = new ArrayList<>();
+        batchBytes = 2;
+        generation++;
+        return taken;
+    }
+
+    private void lingered(long batchGeneration) {
+        List<Doc> due;
+        synchronized (this) {
+            if (generation != batchGeneration || batch.isEmpty())
+                return; // already sent when it filled
+            due = takeBatch();
+        }
+        upload(due, 1);
+    }
+
+    private void upload(List<Doc> docs, int attempt) {
+        try {
+            numRequests.incrementAndGet();
+            UploadDocumentsResult result = client.uploadDocuments(CloudSearchIndexer.getUploadReq(toJson(docs)));
+            Logger.Debug("Indexed batch of %s, %s", docs.size(), result.getStatus());
+            numIndexed.addAndGet(docs.size());
+            complete(docs, null);
+        } catch (AmazonServiceException e) {
+            if (isRetryable(e)) {
+                if (attempt >= maxAttempts) {
+                    complete(docs, e);
+                } else {
+                    uploaders.schedule(() -> upload(docs, attempt + 1), backoff(attempt), TimeUnit.MILLISECONDS);
+                }
+            } else if (!isDocumentRejection(e)) {
+                Logger.Info("Could not upload a batch of %s documents to Cloud Search: %s", docs.size(), e);
+                complete(docs, e);
+            } else if (docs.size() > 1) {
+                // find the bad documents by halves, so the good ones still go in
+                numSplits.incrementAndGet();
+                List<Doc> first = new ArrayList<>(docs.subList(0, docs.size() / 2));
+                List<Doc> second = new ArrayList<>(docs.subList(docs.size() / 2, docs.size()));
+                uploaders.execute(() -> upload(first, 1));
+                uploaders.execute(() -> upload(second, 1));
+            } else {
+                Logger.Info("Cloud Search rejected the document for %s: %s", docs.get(0).path, e.getErrorMessage());
+                numRejected.incrementAndGet();
+                complete(docs, e);
+            }
+        } catch (RuntimeException e) {
+            complete(docs, e);
+        }
+    }
+
+    // joins the documents into the JSON list Cloud Search expects
+    private static byte[] toJson(List<Doc> docs) {
+        int size = 1 + docs.size();
+        for (Doc doc : docs) {
+            size += doc.json.length;
+        }
+        byte[] out = new byte[size];
+        int at = 0;
+        out[at++] = '[';
+        for (int i = 0; i < docs.size(); i++) {
+            if (i > 0)
+                out[at++] = ',';
+            byte[] json = docs.get(i).json;
+            System.arraycopy(json, 0, out, at, json.length);
+            at += json.length;
+        }
+        out[at] = ']';
+        return out;
+    }
+
+    private void complete(List<Doc> docs, Throwable error) {
+        for (Doc doc : docs) {
+            room.release(doc.json.length);
+            if (error == null)
+                doc.indexed.complete(null);
+            else
+                doc.indexed.completeExceptionally(error);
+        }
+    }
+
+    private static boolean isRetryable(AmazonServiceException e) {
+        return RetryUtils.isThrottlingException(e) || e.getStatusCode() == 429 || e.getStatusCode() >= 500;
+    }
+
+    // the batch was turned down for what's in it, e.g. a field the domain doesn't have
+    private static boolean isDocumentRejection(AmazonServiceException e) {
+        return e instanceof DocumentServiceException && e.getStatusCode() == 400;
+    }
+
+    private static long backoff(int attempt) {
+        return ThreadLocalRandom.current().nextLong(Math.min(maxBackoffMillis, backoffMillis << attempt));
+    }
+
+    private static class Doc {
+        final String path;
+        final byte[] json;
+        final CompletableFuture<Void> indexed = new CompletableFuture<>();
+
+        Doc(String path, byte[] json) {
+            this.path = path;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import io.jhy.rekognition.s3batch.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers puts to a DynamoDB table and writes them in BatchWriteItem calls of up to 25 items, sent when a batch fills
+ * or has waited the linger time. Items DynamoDB leaves unprocessed (and whole batches that are throttled) are retried
+ * with jittered backoff.
+ * <p>
+ *     Each put returns a future that completes once its item has been written, so the caller can hold off on
+ *     acknowledging the work until then. The number of items buffered or being written is bounded; puts wait for
+ *     room when it is full.
+ * </p>
+ */
+class DynamoBatcher {
+    private static final int batchSize = 25; // the BatchWriteItem limit
+    private static final int maxAttempts = 8;
+    private static final long backoffMillis = 50;
+    private static final long maxBackoffMillis = 5000;
+    private static final int writerThreads = 4;
+
+    private final AmazonDynamoDB client;
+    private final String tableName;
+    private final String keyName;
+    private final long lingerMillis;
+    private final int maxBuffered;
+    private final Semaphore room;
+    private final ScheduledExecutorService writers;
+    private final AtomicLong numWritten = new AtomicLong(0);
+    private final AtomicLong numRequests = new AtomicLong(0);
+    private final AtomicLong numRetried = new AtomicLong(0);
+    private Map<String, Pending> batch = new LinkedHashMap<>(); // by key, guarded by this
+    private long generation; // counts batches taken, so a linger timer can tell if its batch already went
+    private boolean closed;
+
+    DynamoBatcher(AmazonDynamoDB client, String tableName, String keyName, long lingerMillis, int maxBuffered) {
+        this.client = client;
+        this.tableName = tableName;
+        this.keyName = keyName;
+        this.lingerMillis = lingerMillis;
+        this.maxBuffered = maxBuffered;
+        room = new Semaphore(maxBuffered);
+        writers = new ScheduledThreadPoolExecutor(writerThreads);
+    }
+
+    /**
+     * Queue an item to be written, waiting if the buffer is full. The item's key attribute must be a string.
+     */
+    CompletableFuture<Void> put(Map<String, AttributeValue> item) {
+        try {
+            room.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Futures.failed(e);
+        }
+
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        String key = item.get(keyName).getS();
+        Map<String, Pending> full = null;
+        synchronized (this) {
+            if (closed) {
+                room.release();
+                return Futures.failed(new IllegalStateException("Writes to " + tableName + " have been closed"));
+            }
+
+            // a batch can't hold two writes of the same key, and the later put would win anyway
+            Pending pending = batch.get(key);
+            if (pending != null) {
+                pending.item = item;
+                pending.waiters.add(written);
+            } else {
+                batch.put(key, new Pending(item, written));
+                if (batch.size() == 1) {
+                    long current = generation;
+                    writers.schedule(() -> lingered(current), lingerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (batch.size() == batchSize)
+                full = takeBatch();
+        }
+        if (full != null) {
+            Map<String, Pending> send = full;
+            writers.execute(() -> write(send, 1));
+        }
+        return written;
+    }
+
+    /**
+     * Write what is buffered, and wait for every outstanding write to finish.
+     */
+    void close() {
+        Map<String, Pending> last;
+        synchronized (this) {
+            closed = true;
+            last = takeBatch();
+        }
+        if (!last.isEmpty())
+            writers.execute(() -> write(last, 1));
+
+        room.acquireUninterruptibly(maxBuffered); // all returned once every write has completed
+        writers.shutdown();
+        Logger.Info("Wrote %s items to %s in %s batch requests, retried %s.",
+            numWritten.get(), tableName, numRequests.get(), numRetried.get());
+    }
+
+    // guarded by this
+    private Map<String, Pending> takeBatch() {
+        Map<String, Pending> taken = batch;
+        batch = new LinkedHashMap<>();
+        generation++;
+        return taken;
+    }
+
+    private void lingered(long batchGeneration) {
+        Map<String, Pending> due;
+        synchronized (this) {
+            if (generation != batchGeneration || batch.isEmpty())
+                return; // already sent when it filled
+            due = takeBatch();
+        }
+        write(due, 1);
+    }
+
+    private void write(Map<String, Pending> items, int attempt) {
+        List<WriteRequest> requests = new ArrayList<>(items.size());
+        for (Pending pending : items.values()) {
+            requests.add(new WriteRequest(new PutRequest(pending.item)));
+        }
+
+        Map<String, Pending> retry = new LinkedHashMap<>();
+        try {
+            numRequests.incrementAndGet();
+            BatchWriteItemResult result = client.batchWriteItem(
+                new BatchWriteItemRequest(Collections.singletonMap(tableName, requests)));
+            List<WriteRequest> unprocessed =
+                result.getUnprocessedItems() == null ? null : result.getUnprocessedItems().get(tableName);
+            if (unprocessed != null) {
+                for (WriteRequest request : unprocessed) {
+                    String key = request.getPutRequest().getItem().get(keyName).getS();
+                    Pending pending = items.remove(key);
+                    if (pending != null)
+                        retry.put(key, pending);
+                }
+            }
+            numWritten.addAndGet(items.size());
+            complete(items.values(), null);
+        } catch (AmazonServiceException e) {
+            if (!isThrottle(e)) {
+                complete(items.values(), e);
+                return;
+            }
+            retry = items;
+        } catch (RuntimeException e) {
+            complete(items.values(), e);
+            return;
+        }
+
+        if (retry.isEmpty())
+            return;
+        if (attempt >= maxAttempts) {
+            complete(retry.values(), new IllegalStateException(
+                "Could not write " + retry.size() + " items to " + tableName + " after " + attempt + " attempts"));
+            return;
+        }
+        numRetried.addAndGet(retry.size());
+        Logger.Debug("Retrying %s unprocessed items for %s, attempt %s.", retry.size(), tableName, attempt + 1);
+        Map<String, Pending> again = retry;
+        writers.schedule(() -> write(again, attempt + 1), backoff(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(Collection<Pending> items, Throwable error) {
+        for (Pending pending : items) {
+            for (CompletableFuture<Void> waiter : pending.waiters) {
+                room.release();
+                if (error == null)
+                    waiter.complete(null);
+                else
+                    waiter.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static long backoff(int attempt) {
+        return ThreadLocalRandom.current().nextLong(Math.min(maxBackoffMillis, backoffMillis << attempt));
+    }
+
+    private static boolean isThrottle(AmazonServiceException e) {
+        return e instanceof ProvisionedThroughputExceededException || RetryUtils.isThrottlingException(e);
+    }
+
+    private static class Pending {
+        Map<String, AttributeValue> item;
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>(1);
+
+        Pending(Map<String, AttributeValue> item, CompletableFuture<Void> waiter) {
+            this.item = item;
+            waiters.add(waiter);
+        }
+    }
+}
@@ -1,46 +1,88 @@
 package io.jhy.rekognition.s3batch.processor;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.rekognition.model.Label;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import io.jhy.rekognition.s3batch.AwsClients;
 import org.apache.commons.codec.Charsets;
 
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-public class DynamoWriter implements LabelProcessor {
+public class DynamoWriter implements AsyncLabelProcessor {
     private static HashFunction idHash = Hashing.murmur3_128();
     private static Charset charset = Charsets.UTF_8;
 
+    private final AmazonDynamoDBAsyncClient client;
+    private final String tableName;
     private final Table table;
+    private DynamoBatcher batcher; // null unless batching
 
-    public DynamoWriter(AWSCredentialsProvider creds, String dynamoTable) {
-        AmazonDynamoDBClient client = new AmazonDynamoDBClient(creds);
+    public DynamoWriter(AwsClients clients, String dynamoTable) {
+        client = clients.dynamo();
         DynamoDB db = new DynamoDB(client);
+        tableName = dynamoTable;
         table = db.getTable(dynamoTable);
     }
 
+    /**
+     * Writes in BatchWriteItem calls instead of an item at a time. Each image waits up to lingerMillis for a batch to
+     * fill; at most maxBuffered items are held before callers wait.
+     */
+    public DynamoWriter(AwsClients clients, String dynamoTable, long lingerMillis, int maxBuffered) {
+        this(clients, dynamoTable);
+        batcher = new DynamoBatcher(client, dynamoTable, "id", lingerMillis, maxBuffered);
+    }
+
     @Override
     public void process(List<Label> labels, String imgPath) {
+        if (batcher != null)
+            Futures.await(batcher.put(ItemUtils.toAttributeValues(toItem(labels, imgPath))));
+        else
+            table.putItem(toItem(labels, imgPath));
+    }
 
-        String id = idHash.hashString(imgPath, charset).toString();
-        Item item = new Item()
-            .withPrimaryKey("id", id)
+    @Override
+    public CompletableFuture<Void> processAsync(List<Label> labels, String imgPath) {
+        if (batcher != null)
+            return batcher.put(ItemUtils.toAttributeValues(toItem(labels, imgPath)));
+
+        CompletableFuture<PutItemResult> put = new CompletableFuture<>();
+        PutItemRequest req = new PutItemRequest(tableName, ItemUtils.toAttributeValues(toItem(labels, imgPath)));
+        client.putItemAsync(req, Futures.completing(put));
+        return put.thenApply(result -> null);
+    }
+
+    @Override
+    public void close() {
+        if (batcher != null)
+            batcher.close();
+    }
+
+    static Item toItem(List<Label> labels, String imgPath) {
+        return new Item()
+            .withPrimaryKey("id", itemId(imgPath))
             .withString("path", imgPath)
             .withList("labels", labels.stream().map(DynamoWriter::labelToFields).collect(Collectors.toList()));
+    }
 
-        table.putItem(item);
+    // the hex murmur3 hash of the path
+    static String itemId(String imgPath) {
+        return idHash.hashString(imgPath, charset).toString();
     }
 
-    private static Map<String, Object> labelToFields(Label label) {
+    static Map<String, Object> labelToFields(Label label) {
         HashMap<String, Object> map = new HashMap<>();
         map.put("name", label.getName());
         map.put("confidence", label.getConfidence());
@@ -0,0 +1,52 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Bridges the SDK's async callbacks to CompletableFutures.
+ */
+public class Futures {
+    /**
+     * An AsyncHandler that completes the future with the call's result or exception.
+     */
+    public static <Req extends AmazonWebServiceRequest, Res> AsyncHandler<Req, Res> completing(
+        CompletableFuture<Res> future) {
+        return new AsyncHandler<Req, Res>() {
+            @Override
+            public void onError(Exception exception) {
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(Req request, Res result) {
+                future.complete(result);
+            }
+        };
+    }
+
+    /**
+     * A future that has already failed with this exception.
+     */
+    public static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Waits for the future, rethrowing a failure as the exception it failed with where that's unchecked.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.jhy.rekognition.s3batch.MappedLongMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Gives each image path a small, dense int id, the next one free the first time it's seen, for the label index's
+ * postings lists: dense ids delta-encode to a byte or two, where the 64 bit path hashes would take eight.
+ * <p>
+ *     Paths are found by their murmur3 hash in a {@link MappedLongMap}, so a collision between two paths' 64 bit
+ *     hashes would give them the same id; at tens of millions of paths that's still a one in thousands chance. The
+ *     paths themselves are appended to paths.dat, with each id's offset in paths.off, to turn ids back into paths.
+ * </p>
+ */
+class ImageIds implements Closeable {
+    private static HashFunction hash = Hashing.murmur3_128();
+
+    private final MappedLongMap byHash; // path hash -> id + 1; null when read only
+    private final FileChannel offsets; // id -> offset of its path in paths, 8 bytes each
+    private final FileChannel paths; // length, then UTF-8 path
+    private int nextId;
+    private long pathsSize;
+
+    ImageIds(Path dir, long expectedImages, boolean writable) throws IOException {
+        if (writable) {
+            byHash = MappedLongMap.open(dir.resolve("ids.map"), expectedImages);
+            offsets = FileChannel.open(dir.resolve("paths.off"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            paths = FileChannel.open(dir.resolve("paths.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else {
+            byHash = null;
+            offsets = FileChannel.open(dir.resolve("paths.off"), StandardOpenOption.READ);
+            paths = FileChannel.open(dir.resolve("paths.dat"), StandardOpenOption.READ);
+        }
+        nextId = (int) (offsets.size() / 8);
+        pathsSize = paths.size();
+    }
+
+    /**
+     * The path's id, assigning it the next one if it's new.
+     */
+    synchronized int idOf(String path) throws IOException {
+        long key = hash.hashString(path, StandardCharsets.UTF_8).asLong();
+        key = key != 0 ? key : 1; // 0 is reserved in the map
+        long found = byHash.get(key, 0);
+        if (found != 0)
+            return (int) (found - 1);
+
+        // the path, then its offset, then the map entry: a crash part way leaves at worst an unused id
+        int id = nextId;
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+        record.putInt(bytes.length).put(bytes).flip();
+        long offset = pathsSize;
+        writeFully(paths, record, offset);
+        pathsSize += 4 + bytes.length;
+        ByteBuffer entry = ByteBuffer.allocate(8);
+        entry.putLong(offset).flip();
+        writeFully(offsets, entry, (long) id * 8);
+        byHash.put(key, id + 1);
+        nextId++;
+        return id;
+    }
+
+    String path(int id) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(8);
+        readFully(offsets, entry, (long) id * 8);
+        long offset = entry.getLong(0);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(paths, length, offset);
+        ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+        readFully(paths, bytes, offset + 4);
+        return new String(bytes.array(), StandardCharsets.UTF_8);
+    }
+
+    synchronized int size() {
+        return nextId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (byHash != null) {
+            paths.force(false);
+            offsets.force(false);
+            byHash.force();
+            byHash.close();
+        }
+        paths.close();
+        offsets.close();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Image id files are truncated");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.commons.codec.Charsets;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes Cloud Search label documents as UTF-8 JSON straight into a byte buffer, without reflection, boxing or an
+ * intermediate String. Produces the same documents as {@link CloudSearchIndexer.LabelInsertDoc}:
+ * <pre>
+ *     [{"type":"add","id":"..","fields":{"labels":[".."],"confidence":[90],"path":".."}}, ..]
+ * </pre>
+ * <p>
+ *     Each thread has its own encoder ({@link #get()}), whose buffer is reused from one document to the next. The
+ *     bytes are only valid until the encoder is next started, so copy them out ({@link #toByteArray()}) if they need
+ *     to outlive the call.
+ * </p>
+ */
+class LabelDocEncoder {
+    private static final HashFunction idHash = Hashing.murmur3_128();
+    private static final Charset charset = Charsets.UTF_8;
+    private static final byte[] hex = "0123456789abcdef".getBytes(charset);
+    private static final byte[] typeAdd = "{\"type\":\"add\",\"id\":\"".getBytes(charset);
+    private static final byte[] fieldsLabels = ",\"fields\":{\"labels\":[".getBytes(charset);
+    private static final byte[] confidence = "],\"confidence\":[".getBytes(charset);
+    private static final byte[] path = "],\"path\":".getBytes(charset);
+    private static final int initialSize = 4 * 1024;
+    private static final int maxRetainedSize = 1024 * 1024; // a bigger buffer is dropped rather than kept per thread
+
+    private static final ThreadLocal<LabelDocEncoder> pool = ThreadLocal.withInitial(LabelDocEncoder::new);
+
+    private byte[] buf = new byte[initialSize];
+    private int len;
+    private int numDocs;
+
+    /**
+     * This thread's encoder.
+     */
+    static LabelDocEncoder get() {
+        return pool.get();
+    }
+
+    /**
+     * Encode a single document, unwrapped, into a new array.
+     */
+    byte[] encodeDoc(List<Label> labels, String imgPath) {
+        reset();
+        writeDoc(labels, imgPath);
+        return toByteArray();
+    }
+
+    /**
+     * Start a list of documents, as uploaded to Cloud Search. Follow with {@link #addDoc} and {@link #endBatch()}.
+     */
+    LabelDocEncoder startBatch() {
+        reset();
+        writeByte('[');
+        return this;
+    }
+
+    LabelDocEncoder addDoc(List<Label> labels, String imgPath) {
+        if (numDocs++ > 0)
+            writeByte(',');
+        writeDoc(labels, imgPath);
+        return this;
+    }
+
+    LabelDocEncoder endBatch() {
+        writeByte(']');
+        return this;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int length() {
+        return len;
+    }
+
+    int numDocs() {
+        return numDocs;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, charset);
+    }
+
+    private void reset() {
+        if (buf.length > maxRetainedSize)
+            buf = new byte[initialSize];
+        len = 0;
+        numDocs = 0;
+    }
+
+    private void writeDoc(List<Label> labels, String imgPath) {
+        writeBytes(typeAdd);
+        writeHex(idHash.hashString(imgPath, charset).asBytes());
+        writeByte('"');
+
+        writeBytes(fieldsLabels);
+        for (int i = 0; i < labels.size(); i++) {
+            if (i > 0)
+                writeByte(',');
+            writeString(labels.get(i).getName());
+        }
+        writeBytes(confidence);
+        for (int i = 0; i < labels.size(); i++) {
+            if (i > 0)
+                writeByte(',');
+            writeInt(labels.get(i).getConfidence().intValue()); // decimal precision not required
+        }
+        writeBytes(path);
+        writeString(imgPath);
+        writeByte('}');
+        writeByte('}');
+    }
+
+    private void writeHex(byte[] bytes) {
+        ensure(bytes.length * 2);
+        for (byte b : bytes) {
+            buf[len++] = hex[(b >> 4) & 0xf];
+            buf[len++] = hex[b & 0xf];
+        }
+    }
+
+    private void writeInt(int value) {
+        ensure(11);
+        if (value < 0) {
+            buf[len++] = '-';
+            value = -value;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // digits went in backwards
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    // a JSON string, escaped, encoded as UTF-8
+    private void writeString(String s) {
+        ensure(s.length() * 6 + 2); // worst case: every char escaped as \\uXXXX
+        buf[len++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf[len++] = '\\';
+                buf[len++] = (byte) c;
+            } else if (c < 0x20) {
+                writeControl(c);
+            } else if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xc0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[len++] = (byte) (0xf0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf[len++] = '?'; // unpaired, as String.getBytes would do
+            } else {
+                buf[len++] = (byte) (0xe0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buf[len++] = '"';
+    }
+
+    private void writeControl(char c) {
+        buf[len++] = '\\';
+        switch (c) {
+            case '\n':
+                buf[len++] = 'n';
+                break;
+            case '\r':
+                buf[len++] = 'r';
+                break;
+            case '\t':
+                buf[len++] = 't';
+                break;
+            case '\b':
+                buf[len++] = 'b';
+                break;
+            case '\f':
+                buf[len++] = 'f';
+                break;
+            default:
+                buf[len++] = 'u';
+                buf[len++] = '0';
+                buf[len++] = '0';
+                buf[len++] = hex[c >> 4];
+                buf[len++] = hex[c & 0xf];
+        }
+    }
+
+    private void writeByte(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    private void ensure(int more) {
+        if (len + more > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + more));
+    }
+}
@@ -0,0 +1,432 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import io.jhy.rekognition.s3batch.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local inverted index from label to image, kept up to date as a LabelProcessor, and queried with
+ * {@link LabelQuery}s, e.g. every image labelled Dog with at least 90% confidence.
+ * <p>
+ *     Results are buffered in memory and flushed to a new {@link LabelIndexSegment} every flush interval, or sooner,
+ *     once flushDocs results are waiting. A result's future completes once it's in a segment, so its message is only
+ *     acked once it can be queried; if the caller bounds the results it has waiting, flushDocs should be that bound,
+ *     or it'll sit idle until the timer fires. Segments are immutable and memory mapped; when there are enough of a
+ *     similar size next to each other, they're merged into one in the background, so a query reads a handful of
+ *     segments rather than one per flush.
+ * </p>
+ * <p>
+ *     An image processed again is written to a newer segment, and its entry there replaces any in older ones: a query
+ *     skips matches in a segment for images that a newer segment also has. Merges do the same as they go, dropping
+ *     the replaced entries.
+ * </p>
+ */
+public class LabelIndex implements AsyncLabelProcessor {
+    private static final int mergeFactor = 10;
+    private static final long maxSegmentBytes = 1L << 30;
+
+    private final Path dir;
+    private final boolean writable;
+    private final int flushDocs;
+    private final ImageIds ids;
+    private volatile List<LabelIndexSegment> segments; // oldest first; replaced, not modified, under this
+    private int lastFlush; // the highest flush number in use
+
+    // results waiting to be flushed, under this
+    private TreeMap<Integer, List<Label>> buffered = new TreeMap<>();
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService merger;
+    private volatile boolean closed;
+
+    /**
+     * Opens the index in the directory for writing, creating it if need be.
+     *
+     * @param flushMillis    max millis a result waits to be written to a segment
+     * @param flushDocs      number of waiting results that starts a flush before the interval is up
+     * @param expectedImages number of images to size the path to id map for, which grows past it if need be
+     */
+    public LabelIndex(Path dir, long flushMillis, int flushDocs, long expectedImages) throws IOException {
+        this(dir, true, flushDocs, expectedImages);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        merger.execute(this::mergeQuietly); // in case the last run stopped short of merging
+    }
+
+    /**
+     * Opens an existing index for queries only. Don't use one open for writing by another process, as its merges
+     * may remove segments from under this.
+     */
+    public static LabelIndex openReadOnly(Path dir) throws IOException {
+        return new LabelIndex(dir, false, 0, 0);
+    }
+
+    private LabelIndex(Path dir, boolean writable, int flushDocs, long expectedImages) throws IOException {
+        this.dir = dir;
+        this.writable = writable;
+        this.flushDocs = Math.max(1, flushDocs);
+        if (writable) {
+            Files.createDirectories(dir);
+            flusher = Executors.newSingleThreadScheduledExecutor();
+            merger = Executors.newSingleThreadExecutor();
+        } else {
+            flusher = null;
+            merger = null;
+        }
+        ids = new ImageIds(dir, expectedImages, writable);
+        segments = openSegments();
+        for (LabelIndexSegment segment : segments) {
+            lastFlush = Math.max(lastFlush, segment.last);
+        }
+        Logger.Info("Opened label index %s with %s images in %s segments.", dir, ids.size(), segments.size());
+    }
+
+    // opens the segments in order, removing any left behind by a merge (covered by a newer one) or half written
+    private List<LabelIndexSegment> openSegments() throws IOException {
+        TreeMap<Integer, Path> byLast = new TreeMap<>();
+        TreeMap<Integer, Integer> firstByLast = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(".tmp") && writable) {
+                    Files.delete(file);
+                    continue;
+                }
+                int[] range = LabelIndexSegment.range(file);
+                if (range == null)
+                    continue;
+                // keep the widest segment covering each range
+                Integer first = firstByLast.get(range[1]);
+                if (first == null || range[0] < first) {
+                    byLast.put(range[1], file);
+                    firstByLast.put(range[1], range[0]);
+                }
+            }
+        }
+
+        List<LabelIndexSegment> opened = new ArrayList<>();
+        int covered = Integer.MAX_VALUE; // lowest first of the segments kept so far, walking newest to oldest
+        for (Map.Entry<Integer, Path> entry : byLast.descendingMap().entrySet()) {
+            if (entry.getKey() >= covered) {
+                if (writable)
+                    Files.deleteIfExists(entry.getValue());
+                continue;
+            }
+            covered = firstByLast.get(entry.getKey());
+            opened.add(LabelIndexSegment.open(entry.getValue()));
+        }
+        Collections.reverse(opened);
+        if (writable) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "seg-*.lix")) {
+                for (Path file : files) {
+                    if (!byLast.containsValue(file))
+                        Files.delete(file); // merged into a wider one
+                }
+            }
+        }
+        return opened;
+    }
+
+    @Override
+    public void process(List<Label> labels, String path) {
+        Futures.await(processAsync(labels, path));
+    }
+
+    @Override
+    public CompletableFuture<Void> processAsync(List<Label> labels, String path) {
+        if (!writable || closed)
+            return Futures.failed(new IllegalStateException("Label index is not open for writing"));
+        int id;
+        try {
+            id = ids.idOf(path);
+        } catch (IOException e) {
+            return Futures.failed(e);
+        }
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        boolean full;
+        synchronized (this) {
+            buffered.put(id, labels);
+            waiting.add(flushed);
+            full = waiting.size() == flushDocs; // not buffered's size, as an image can come up twice
+        }
+        if (full)
+            flusher.execute(this::flushQuietly);
+        return flushed;
+    }
+
+    /**
+     * Paths of up to limit images matching the query (all of them if limit is negative), the most recently indexed
+     * segments' first.
+     */
+    public List<String> query(LabelQuery query, int limit) throws IOException {
+        List<LabelIndexSegment> snapshot = segments;
+        List<String> paths = new ArrayList<>();
+        for (int i = snapshot.size() - 1; i >= 0 && (limit < 0 || paths.size() < limit); i--) {
+            for (int id : query.matches(snapshot.get(i))) {
+                if (isReplaced(id, snapshot, i))
+                    continue;
+                paths.add(ids.path(id));
+                if (limit >= 0 && paths.size() >= limit)
+                    break;
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * The number of images matching the query.
+     */
+    public long count(LabelQuery query) {
+        List<LabelIndexSegment> snapshot = segments;
+        long count = 0;
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            for (int id : query.matches(snapshot.get(i))) {
+                if (!isReplaced(id, snapshot, i))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    // whether a segment after the index has this image, which replaces its entry in that one
+    private static boolean isReplaced(int id, List<LabelIndexSegment> segments, int index) {
+        for (int newer = index + 1; newer < segments.size(); newer++) {
+            if (segments.get(newer).contains(id))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Flushes what's buffered, waits for merges to finish, and closes the index.
+     */
+    @Override
+    public void close() {
+        if (writable) {
+            closed = true;
+            flusher.shutdown();
+            awaitQuietly(flusher);
+            flushQuietly();
+            merger.shutdown();
+            awaitQuietly(merger);
+        }
+        try {
+            ids.close();
+        } catch (IOException e) {
+            Logger.Info("Could not close label index ids: %s", e);
+        }
+        Logger.Info("Closed label index %s with %s images in %s segments.", dir, ids.size(), segments.size());
+    }
+
+    private void flushQuietly() {
+        TreeMap<Integer, List<Label>> docs;
+        List<CompletableFuture<Void>> flushed;
+        synchronized (this) {
+            if (buffered.isEmpty())
+                return;
+            docs = buffered;
+            flushed = waiting;
+            buffered = new TreeMap<>();
+            waiting = new ArrayList<>();
+        }
+        try {
+            flush(docs);
+            for (CompletableFuture<Void> future : flushed) {
+                future.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.Info("Could not flush %s results to the label index: %s", docs.size(), e);
+            for (CompletableFuture<Void> future : flushed) {
+                future.completeExceptionally(e);
+            }
+        }
+        if (!merger.isShutdown())
+            merger.execute(this::mergeQuietly);
+    }
+
+    private void flush(TreeMap<Integer, List<Label>> docs) throws IOException {
+        // each label's ids by confidence; ids go in ascending, as the docs are sorted by id
+        Map<String, List<List<Integer>>> postings = new TreeMap<>();
+        for (Map.Entry<Integer, List<Label>> doc : docs.entrySet()) {
+            for (Label label : doc.getValue()) {
+                List<List<Integer>> buckets = postings.computeIfAbsent(label.getName(), name -> newBuckets());
+                int confidence = Math.max(0, Math.min(100, Math.round(label.getConfidence())));
+                List<Integer> bucket = buckets.get(confidence);
+                if (bucket.isEmpty() || bucket.get(bucket.size() - 1) != doc.getKey().intValue())
+                    bucket.add(doc.getKey());
+            }
+        }
+
+        int number;
+        synchronized (this) {
+            number = ++lastFlush;
+        }
+        int[] docIds = toArray(docs.keySet());
+        Path file = write(number, number, docIds, (writer) -> {
+            for (Map.Entry<String, List<List<Integer>>> term : postings.entrySet()) {
+                writer.startTerm(term.getKey());
+                for (int confidence = 100; confidence >= 0; confidence--) {
+                    writer.bucket(confidence, toArray(term.getValue().get(confidence)));
+                }
+                writer.endTerm();
+            }
+        });
+        LabelIndexSegment segment = LabelIndexSegment.open(file);
+        synchronized (this) {
+            List<LabelIndexSegment> next = new ArrayList<>(segments);
+            next.add(segment);
+            segments = next;
+        }
+        Logger.Debug("Flushed %s images to label index segment %s.", docIds.length, number);
+    }
+
+    private void mergeQuietly() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && merge()) {
+                // keep going while there's a run to merge
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.Info("Could not merge label index segments: %s", e);
+        }
+    }
+
+    // Merges the first run of mergeFactor neighbouring segments in the same size tier (by powers of mergeFactor
+    // images), as long as they'd fit in one segment. Neighbours only, so the newer-replaces-older order holds.
+    private boolean merge() throws IOException {
+        List<LabelIndexSegment> snapshot = segments;
+        int start = -1;
+        for (int i = 0; i + mergeFactor <= snapshot.size() && start < 0; i++) {
+            int tier = tier(snapshot.get(i));
+            long bytes = 0;
+            boolean run = true;
+            for (int j = i; j < i + mergeFactor && run; j++) {
+                bytes += snapshot.get(j).sizeBytes();
+                run = tier(snapshot.get(j)) == tier && bytes <= maxSegmentBytes;
+            }
+            if (run)
+                start = i;
+        }
+        if (start < 0)
+            return false;
+
+        List<LabelIndexSegment> inputs = new ArrayList<>(snapshot.subList(start, start + mergeFactor));
+        LabelIndexSegment merged = LabelIndexSegment.open(mergeInto(inputs));
+        synchronized (this) {
+            // flushes only ever add to the end, so the inputs are still where they were
+            List<LabelIndexSegment> next = new ArrayList<>(segments);
+            int at = next.indexOf(inputs.get(0));
+            next.subList(at, at + inputs.size()).clear();
+            next.add(at, merged);
+            segments = next;
+        }
+        for (LabelIndexSegment input : inputs) {
+            Files.deleteIfExists(input.file); // mapped buffers stay readable for queries still using them
+        }
+        Logger.Debug("Merged label index segments %s to %s, %s images.", merged.first, merged.last,
+            merged.numDocs());
+        return true;
+    }
+
+    private Path mergeInto(List<LabelIndexSegment> inputs) throws IOException {
+        List<int[]> allDocs = new ArrayList<>();
+        TreeSet<String> terms = new TreeSet<>();
+        for (LabelIndexSegment input : inputs) {
+            allDocs.add(input.docs());
+            terms.addAll(input.terms());
+        }
+        int[] docIds = LabelIndexSegment.unionAll(allDocs);
+
+        return write(inputs.get(0).first, inputs.get(inputs.size() - 1).last, docIds, (writer) -> {
+            for (String term : terms) {
+                int[][][] byInput = new int[inputs.size()][][];
+                for (int i = 0; i < inputs.size(); i++) {
+                    byInput[i] = inputs.get(i).buckets(term);
+                }
+                writer.startTerm(term);
+                for (int confidence = 100; confidence >= 0; confidence--) {
+                    List<int[]> bucket = new ArrayList<>();
+                    for (int i = 0; i < inputs.size(); i++) {
+                        int[] ids = byInput[i][confidence];
+                        if (ids != null)
+                            bucket.add(withoutReplaced(ids, inputs, i));
+                    }
+                    writer.bucket(confidence, LabelIndexSegment.unionAll(bucket));
+                }
+                writer.endTerm();
+            }
+        });
+    }
+
+    private static int[] withoutReplaced(int[] ids, List<LabelIndexSegment> segments, int index) {
+        int[] kept = new int[ids.length];
+        int n = 0;
+        for (int id : ids) {
+            if (!isReplaced(id, segments, index))
+                kept[n++] = id;
+        }
+        return n == kept.length ? kept : Arrays.copyOf(kept, n);
+    }
+
+    private interface Postings {
+        void writeTo(LabelIndexSegment.Writer writer) throws IOException;
+    }
+
+    // writes to a temp file and renames it into place, so a segment file is either whole or not there
+    private Path write(int first, int last, int[] docIds, Postings postings) throws IOException {
+        String name = LabelIndexSegment.fileName(first, last);
+        Path temp = dir.resolve(name + ".tmp");
+        try (LabelIndexSegment.Writer writer = new LabelIndexSegment.Writer(temp, docIds)) {
+            postings.writeTo(writer);
+        }
+        return Files.move(temp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int tier(LabelIndexSegment segment) {
+        int tier = 0;
+        for (long docs = segment.numDocs(); docs >= mergeFactor; docs /= mergeFactor) {
+            tier++;
+        }
+        return tier;
+    }
+
+    private static List<List<Integer>> newBuckets() {
+        List<List<Integer>> buckets = new ArrayList<>(101);
+        for (int i = 0; i <= 100; i++) {
+            buckets.add(new ArrayList<>(0));
+        }
+        return buckets;
+    }
+
+    private static int[] toArray(java.util.Collection<Integer> values) {
+        int[] array = new int[values.size()];
+        int i = 0;
+        for (int value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    private static void awaitQuietly(ExecutorService service) {
+        try {
+            service.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One immutable, memory-mapped file of the label index, covering the images flushed (or merged) into it: which
+ * images it has, and for each label, the images with it.
+ * <p>
+ *     The file holds a header, the sorted ids of its images as fixed width ints (so a lookup is a binary search),
+ *     then each label's postings, then the table of labels with their postings' offsets, which is read onto the heap
+ *     when the segment is opened. A label's postings are grouped by confidence, highest first, as one bucket per
+ *     whole percentage: the confidence byte, the number of ids, then the ids in ascending order as varint deltas, and
+ *     a -1 byte after the last bucket. So a query with a high threshold only reads the top few buckets.
+ * </p>
+ */
+class LabelIndexSegment {
+    static final int noMoreBuckets = -1;
+    private static final int magic = 0x524b4c49; // "RKLI"
+    private static final int version = 1;
+    private static final int headerSize = 32; // magic, version, numDocs, numTerms, termsOffset, reserved
+    private static final int docsOffset = headerSize;
+
+    final int first; // the range of flush numbers it covers, to order segments and find ones replaced by a merge
+    final int last;
+    final Path file;
+    private final MappedByteBuffer buf;
+    private final IntBuffer docs;
+    private final Map<String, Integer> terms; // label name -> postings offset
+
+    private LabelIndexSegment(int first, int last, Path file, MappedByteBuffer buf, IntBuffer docs,
+        Map<String, Integer> terms) {
+        this.first = first;
+        this.last = last;
+        this.file = file;
+        this.buf = buf;
+        this.docs = docs;
+        this.terms = terms;
+    }
+
+    static String fileName(int first, int last) {
+        return String.format("seg-%08d-%08d.lix", first, last);
+    }
+
+    // null if not a segment file name
+    static int[] range(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.matches("seg-\\d{8}-\\d{8}\\.lix"))
+            return null;
+        return new int[]{Integer.parseInt(name.substring(4, 12)), Integer.parseInt(name.substring(13, 21))};
+    }
+
+    static LabelIndexSegment open(Path file) throws IOException {
+        int[] range = range(file);
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.getInt(0) != magic || buf.getInt(4) != version)
+            throw new IOException(file + " is not a label index segment");
+        int numDocs = buf.getInt(8);
+        int numTerms = buf.getInt(12);
+        int termsOffset = (int) buf.getLong(16);
+
+        ByteBuffer docBytes = buf.duplicate();
+        docBytes.position(docsOffset).limit(docsOffset + numDocs * 4);
+        IntBuffer docs = docBytes.slice().asIntBuffer();
+
+        Map<String, Integer> terms = new HashMap<>(numTerms * 2);
+        ByteBuffer table = buf.duplicate();
+        table.position(termsOffset);
+        for (int i = 0; i < numTerms; i++) {
+            byte[] name = new byte[getVarint(table)];
+            table.get(name);
+            terms.put(new String(name, StandardCharsets.UTF_8), table.getInt());
+        }
+        return new LabelIndexSegment(range[0], range[1], file, buf, docs, terms);
+    }
+
+    int numDocs() {
+        return docs.limit();
+    }
+
+    long sizeBytes() {
+        return buf.capacity();
+    }
+
+    boolean contains(int id) {
+        int low = 0;
+        int high = docs.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int doc = docs.get(mid);
+            if (doc < id)
+                low = mid + 1;
+            else if (doc > id)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    int[] docs() {
+        int[] all = new int[docs.limit()];
+        docs.duplicate().get(all);
+        return all;
+    }
+
+    Set<String> terms() {
+        return Collections.unmodifiableSet(terms.keySet());
+    }
+
+    /**
+     * Ids of the images with this label at or over the confidence, in ascending order.
+     */
+    int[] postings(String label, int minConfidence) {
+        Integer offset = terms.get(label);
+        if (offset == null)
+            return new int[0];
+        ByteBuffer in = buf.duplicate();
+        in.position(offset);
+        List<int[]> buckets = new ArrayList<>();
+        while (true) {
+            int confidence = in.get();
+            if (confidence == noMoreBuckets || confidence < minConfidence)
+                break;
+            buckets.add(readBucket(in));
+        }
+        return unionAll(buckets);
+    }
+
+    /**
+     * Every bucket of the label's postings, indexed by confidence; empty buckets are null.
+     */
+    int[][] buckets(String label) {
+        int[][] buckets = new int[101][];
+        Integer offset = terms.get(label);
+        if (offset == null)
+            return buckets;
+        ByteBuffer in = buf.duplicate();
+        in.position(offset);
+        int confidence;
+        while ((confidence = in.get()) != noMoreBuckets) {
+            buckets[confidence] = readBucket(in);
+        }
+        return buckets;
+    }
+
+    private static int[] readBucket(ByteBuffer in) {
+        int[] ids = new int[getVarint(in)];
+        int id = 0;
+        for (int i = 0; i < ids.length; i++) {
+            id += getVarint(in);
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    // merges sorted arrays pairwise, so each id is compared about log(buckets) times
+    static int[] unionAll(List<int[]> sorted) {
+        if (sorted.isEmpty())
+            return new int[0];
+        List<int[]> round = sorted;
+        while (round.size() > 1) {
+            List<int[]> next = new ArrayList<>((round.size() + 1) / 2);
+            for (int i = 0; i < round.size(); i += 2) {
+                next.add(i + 1 < round.size() ? union(round.get(i), round.get(i + 1)) : round.get(i));
+            }
+            round = next;
+        }
+        return round.get(0);
+    }
+
+    static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                out[n++] = a[i++];
+            else if (a[i] > b[j])
+                out[n++] = b[j++];
+            else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            out[n++] = a[i++];
+        }
+        while (j < b.length) {
+            out[n++] = b[j++];
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    /**
+     * Writes a segment as a stream: the docs, then each label's buckets in turn, from highest confidence down.
+     */
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final TermTable table = new TermTable();
+        private int numDocs;
+        private int numTerms;
+        private int lastConfidence;
+
+        Writer(Path file, int[] docs) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            OutputStream stream = Channels.newOutputStream(channel);
+            out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.write(new byte[headerSize]);
+            for (int doc : docs) {
+                out.writeInt(doc);
+            }
+            numDocs = docs.length;
+        }
+
+        void startTerm(String label) throws IOException {
+            table.add(label, out.size());
+            numTerms++;
+            lastConfidence = 101;
+        }
+
+        /**
+         * Adds the label's bucket of ids, sorted ascending, at this confidence. Buckets must come highest first.
+         */
+        void bucket(int confidence, int[] ids) throws IOException {
+            if (ids.length == 0)
+                return;
+            if (confidence >= lastConfidence)
+                throw new IllegalArgumentException("Buckets out of order");
+            lastConfidence = confidence;
+            out.writeByte(confidence);
+            putVarint(out, ids.length);
+            int last = 0;
+            for (int id : ids) {
+                putVarint(out, id - last);
+                last = id;
+            }
+        }
+
+        void endTerm() throws IOException {
+            out.writeByte(noMoreBuckets);
+        }
+
+        @Override
+        public void close() throws IOException {
+            int termsOffset = out.size();
+            if (termsOffset < 0)
+                throw new IOException("Label index segment too large");
+            table.writeTo(out);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(magic).putInt(version).putInt(numDocs).putInt(numTerms).putLong(termsOffset).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    // the terms table, kept until the end of the file
+    private static class TermTable {
+        private final List<byte[]> names = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+
+        void add(String name, int offset) {
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+            offsets.add(offset);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < names.size(); i++) {
+                putVarint(out, names.get(i).length);
+                out.write(names.get(i));
+                out.writeInt(offsets.get(i));
+            }
+        }
+    }
+
+    private static void putVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
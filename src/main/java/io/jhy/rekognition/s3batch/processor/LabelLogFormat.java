@@ -0,0 +1,69 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * The label log's file format, shared by the writer and reader.
+ * <p>
+ *     A log is a directory of segment files, labels-00000001.seg and up, read in name order. Each segment starts
+ *     with a 4 byte magic number and a version byte, then holds records, each a type byte and then:
+ * </p>
+ * <ul>
+ *     <li>name: the label name's id, then its UTF-8 length and bytes. Ids count up from 0 within a segment, and a
+ *     name is defined before the first result using it.</li>
+ *     <li>result: the number of leading bytes the path shares with the previous result's path in the segment, the
+ *     length and bytes of the rest of it, then the label count, and for each label its name id and its confidence
+ *     as a whole percentage in one byte.</li>
+ * </ul>
+ * Numbers other than the type and confidence bytes are unsigned LEB128 varints. Every segment stands alone, so one
+ * can be read, copied or dropped without the others.
+ */
+final class LabelLogFormat {
+    static final int magic = 0x524b4c4c; // "RKLL"
+    static final byte version = 1;
+    static final byte nameRecord = 1;
+    static final byte resultRecord = 2;
+
+    private LabelLogFormat() {
+    }
+
+    static String segmentName(int number) {
+        return String.format("labels-%08d.seg", number);
+    }
+
+    // -1 if not a segment
+    static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("labels-") || !name.endsWith(".seg"))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring("labels-".length(), name.length() - ".seg".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static byte confidenceByte(Float confidence) {
+        return (byte) Math.max(0, Math.min(100, Math.round(confidence == null ? 0 : confidence)));
+    }
+}
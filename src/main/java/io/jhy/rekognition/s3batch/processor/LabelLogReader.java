@@ -0,0 +1,105 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import io.jhy.rekognition.s3batch.Logger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams the results in a label log back, segment by segment. Each segment is memory mapped and decoded in place,
+ * so reading goes about as fast as the disk does.
+ * <p>
+ *     A segment whose last record is incomplete, e.g. after a crash, is read up to that record.
+ * </p>
+ */
+public class LabelLogReader {
+    public interface Visitor {
+        void visit(String path, List<Label> labels);
+    }
+
+    /**
+     * Reads every segment in the directory, in order. Returns the number of results read.
+     */
+    public static long read(Path dir, Visitor visitor) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (LabelLogFormat.segmentNumber(file) >= 0)
+                    segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(LabelLogFormat.segmentNumber(a), LabelLogFormat.segmentNumber(b)));
+
+        long count = 0;
+        for (Path segment : segments) {
+            count += readSegment(segment, visitor);
+        }
+        return count;
+    }
+
+    static long readSegment(Path file, Visitor visitor) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.remaining() < 5 || buf.getInt() != LabelLogFormat.magic || buf.get() != LabelLogFormat.version) {
+            Logger.Info("%s is not a label log segment, skipping.", file);
+            return 0;
+        }
+
+        List<String> names = new ArrayList<>();
+        byte[] path = new byte[256];
+        int pathLength = 0;
+        long count = 0;
+        int recordStart = buf.position();
+        try {
+            while (buf.hasRemaining()) {
+                recordStart = buf.position();
+                byte type = buf.get();
+                if (type == LabelLogFormat.nameRecord) {
+                    int id = LabelLogFormat.getVarint(buf);
+                    byte[] name = new byte[LabelLogFormat.getVarint(buf)];
+                    buf.get(name);
+                    if (id != names.size())
+                        throw new IllegalStateException("Label name id " + id + " out of order");
+                    names.add(new String(name, StandardCharsets.UTF_8));
+                } else if (type == LabelLogFormat.resultRecord) {
+                    int shared = LabelLogFormat.getVarint(buf);
+                    int rest = LabelLogFormat.getVarint(buf);
+                    if (shared > pathLength)
+                        throw new IllegalStateException("Path shares more than the previous one's length");
+                    if (shared + rest > path.length)
+                        path = Arrays.copyOf(path, Math.max(shared + rest, path.length * 2));
+                    buf.get(path, shared, rest);
+                    pathLength = shared + rest;
+
+                    int numLabels = LabelLogFormat.getVarint(buf);
+                    List<Label> labels = new ArrayList<>(numLabels);
+                    for (int i = 0; i < numLabels; i++) {
+                        String name = names.get(LabelLogFormat.getVarint(buf));
+                        labels.add(new Label().withName(name).withConfidence((float) buf.get()));
+                    }
+                    visitor.visit(new String(path, 0, pathLength, StandardCharsets.UTF_8), labels);
+                    count++;
+                } else {
+                    throw new IllegalStateException("Unknown record type " + type);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalStateException | IndexOutOfBoundsException e) {
+            Logger.Info("%s is truncated or corrupt at byte %s, read %s results from it: %s", file, recordStart, count,
+                e);
+        }
+        return count;
+    }
+}
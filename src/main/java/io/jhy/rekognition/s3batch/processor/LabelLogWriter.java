@@ -0,0 +1,243 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import io.jhy.rekognition.s3batch.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends detected labels to segment files in a local directory, in the compact binary format described in
+ * {@link LabelLogFormat}, for offline analysis without a round trip through a remote store. Read them back with
+ * {@link LabelLogReader}.
+ * <p>
+ *     Results are encoded and written by a single writer thread, which takes whatever has queued up since its last
+ *     write as one batch: one write call for many results when busy, and no waiting for a batch to fill when not.
+ *     A result's future completes once its batch has been written to the file (not forced to disk). A new segment is
+ *     started, with a fresh dictionary, once the current one reaches the segment size. A new writer always starts a
+ *     new segment, after any already in the directory.
+ * </p>
+ */
+public class LabelLogWriter implements AsyncLabelProcessor {
+    private static final int bufferBytes = 1024 * 1024;
+    private static final int maxBatch = 10000;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // owned by the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferBytes);
+    private final Map<String, Integer> dictionary = new HashMap<>(); // label name -> id, for the current segment
+    private byte[] lastPath = new byte[0];
+    private FileChannel segment;
+    private long segmentSize;
+    private int segmentNumber;
+    private long numWritten;
+    private long numSegments;
+
+    public LabelLogWriter(Path dir, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                segmentNumber = Math.max(segmentNumber, LabelLogFormat.segmentNumber(file));
+            }
+        }
+        writer = new Thread(this::writeLoop, "label-log");
+        writer.start();
+        Logger.Info("Writing label log to %s", dir);
+    }
+
+    @Override
+    public void process(List<Label> labels, String path) {
+        Futures.await(processAsync(labels, path));
+    }
+
+    @Override
+    public CompletableFuture<Void> processAsync(List<Label> labels, String path) {
+        if (closed)
+            return Futures.failed(new IllegalStateException("Label log is closed"));
+        Pending result = new Pending(labels, path);
+        pending.add(result);
+        return result.written;
+    }
+
+    /**
+     * Writes out everything queued, then closes the current segment.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Logger.Info("Wrote %s results to the label log in %s segments.", numWritten, numSegments);
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Pending first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && pending.isEmpty())
+                        break;
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch, maxBatch - 1);
+
+            try {
+                write(batch);
+                for (Pending result : batch) {
+                    if (result.written.complete(null))
+                        numWritten++;
+                }
+            } catch (IOException | RuntimeException e) {
+                Logger.Info("Could not write %s results to the label log: %s", batch.size(), e);
+                closeSegment(); // its tail may be a partial record; readers stop there, and we carry on in a new one
+                for (Pending result : batch) {
+                    result.written.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+        closeSegment();
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        if (segment == null || segmentSize >= segmentBytes)
+            roll();
+        buffer.clear();
+        for (Pending result : batch) {
+            byte[] path = result.path.getBytes(StandardCharsets.UTF_8);
+            int bound = maxEncodedSize(path, result.labels);
+            if (bound > bufferBytes) {
+                result.written.completeExceptionally(
+                    new IllegalArgumentException("Result for " + result.path + " is too large to log"));
+                continue;
+            }
+            if (buffer.remaining() < bound)
+                flush();
+            encode(path, result.labels);
+        }
+        flush();
+    }
+
+    private void encode(byte[] path, List<Label> labels) {
+        int[] ids = new int[labels.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = nameId(labels.get(i).getName());
+        }
+
+        int shared = 0;
+        int max = Math.min(path.length, lastPath.length);
+        while (shared < max && path[shared] == lastPath[shared]) {
+            shared++;
+        }
+        buffer.put(LabelLogFormat.resultRecord);
+        LabelLogFormat.putVarint(buffer, shared);
+        LabelLogFormat.putVarint(buffer, path.length - shared);
+        buffer.put(path, shared, path.length - shared);
+        LabelLogFormat.putVarint(buffer, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            LabelLogFormat.putVarint(buffer, ids[i]);
+            buffer.put(LabelLogFormat.confidenceByte(labels.get(i).getConfidence()));
+        }
+        lastPath = path;
+    }
+
+    // the name's id in this segment, defining it first if it's new
+    private int nameId(String name) {
+        Integer id = dictionary.get(name);
+        if (id != null)
+            return id;
+        id = dictionary.size();
+        dictionary.put(name, id);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        buffer.put(LabelLogFormat.nameRecord);
+        LabelLogFormat.putVarint(buffer, id);
+        LabelLogFormat.putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+        return id;
+    }
+
+    // worst case, with every label name new to the segment
+    private static int maxEncodedSize(byte[] path, List<Label> labels) {
+        int size = 1 + 5 + 5 + path.length + 5;
+        for (Label label : labels) {
+            size += 5 + 1 + 1 + 5 + 5 + label.getName().length() * 3;
+        }
+        return size;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segmentSize += segment.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        segmentNumber++;
+        segment = FileChannel.open(dir.resolve(LabelLogFormat.segmentName(segmentNumber)),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentSize = 0;
+        numSegments++;
+        dictionary.clear();
+        lastPath = new byte[0];
+
+        buffer.clear();
+        buffer.putInt(LabelLogFormat.magic);
+        buffer.put(LabelLogFormat.version);
+        flush();
+    }
+
+    private void closeSegment() {
+        if (segment == null)
+            return;
+        try {
+            segment.force(false);
+            segment.close();
+        } catch (IOException e) {
+            Logger.Info("Could not close label log segment %s: %s", segmentNumber, e);
+        }
+        segment = null;
+    }
+
+    private static class Pending {
+        final List<Label> labels;
+        final String path;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Pending(List<Label> labels, String path) {
+            this.labels = labels;
+            this.path = path;
+        }
+    }
+}
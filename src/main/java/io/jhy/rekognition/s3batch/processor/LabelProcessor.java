@@ -6,4 +6,10 @@ import java.util.List;
 
 public interface LabelProcessor {
     public void process(List<Label>labels, String path);
+
+    /**
+     * Called once no more labels will be passed in, to finish any buffered work.
+     */
+    public default void close() {
+    }
 }
@@ -0,0 +1,133 @@
+package io.jhy.rekognition.s3batch.processor;
+
+/**
+ * A query on the {@link LabelIndex}: labels with a minimum confidence each, combined with AND and OR.
+ * <pre>
+ *     LabelQuery.label("Dog", 90).and(LabelQuery.label("Outdoors", 70)).or(LabelQuery.label("Cat", 90))
+ *     LabelQuery.parse("Dog&gt;=90 AND Outdoors&gt;=70 OR Cat&gt;=90")
+ * </pre>
+ */
+public abstract class LabelQuery {
+    /**
+     * Images with this label, detected with at least this confidence (a whole percentage; 0 for any).
+     */
+    public static LabelQuery label(String name, int minConfidence) {
+        return new Label(name, minConfidence);
+    }
+
+    public LabelQuery and(LabelQuery other) {
+        return new And(this, other);
+    }
+
+    public LabelQuery or(LabelQuery other) {
+        return new Or(this, other);
+    }
+
+    /**
+     * Reads a query of labels, each optionally followed by {@code >=} and a minimum confidence, joined by AND and OR.
+     * AND binds tighter than OR; there are no parentheses. Label names may contain spaces, e.g.
+     * {@code Golden Retriever>=80 AND Outdoors}.
+     */
+    public static LabelQuery parse(String query) {
+        LabelQuery any = null;
+        for (String conjunction : query.split(keyword("OR"), -1)) {
+            LabelQuery all = null;
+            for (String term : conjunction.split(keyword("AND"), -1)) {
+                LabelQuery label = parseLabel(term.trim());
+                all = all == null ? label : all.and(label);
+            }
+            any = any == null ? all : any.or(all);
+        }
+        return any;
+    }
+
+    // the keyword as a word of its own, so a missing label either side of it is left as an empty term
+    private static String keyword(String word) {
+        return "\\s*(?<!\\S)" + word + "(?!\\S)\\s*";
+    }
+
+    private static LabelQuery parseLabel(String term) {
+        int op = term.indexOf(">=");
+        if (op < 0) {
+            if (term.isEmpty())
+                throw new IllegalArgumentException("Empty label in query");
+            return label(term, 0);
+        }
+        String name = term.substring(0, op).trim();
+        if (name.isEmpty())
+            throw new IllegalArgumentException("Empty label in query: " + term);
+        try {
+            return label(name, Integer.parseInt(term.substring(op + 2).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad confidence in query: " + term, e);
+        }
+    }
+
+    /**
+     * Ids of the segment's images that match, in ascending order.
+     */
+    abstract int[] matches(LabelIndexSegment segment);
+
+    private static class Label extends LabelQuery {
+        private final String name;
+        private final int minConfidence;
+
+        Label(String name, int minConfidence) {
+            this.name = name;
+            this.minConfidence = minConfidence;
+        }
+
+        @Override
+        int[] matches(LabelIndexSegment segment) {
+            return segment.postings(name, minConfidence);
+        }
+
+        @Override
+        public String toString() {
+            return minConfidence > 0 ? name + ">=" + minConfidence : name;
+        }
+    }
+
+    private static class And extends LabelQuery {
+        private final LabelQuery left;
+        private final LabelQuery right;
+
+        And(LabelQuery left, LabelQuery right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int[] matches(LabelIndexSegment segment) {
+            int[] matched = left.matches(segment);
+            if (matched.length == 0)
+                return matched;
+            return LabelIndexSegment.intersect(matched, right.matches(segment));
+        }
+
+        @Override
+        public String toString() {
+            return left + " AND " + right;
+        }
+    }
+
+    private static class Or extends LabelQuery {
+        private final LabelQuery left;
+        private final LabelQuery right;
+
+        Or(LabelQuery left, LabelQuery right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int[] matches(LabelIndexSegment segment) {
+            return LabelIndexSegment.union(left.matches(segment), right.matches(segment));
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " OR " + right + ")";
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package io.jhy.rekognition.s3batch.processor;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.rekognition.model.Label;
 import com.amazonaws.services.s3.AmazonS3Client;
@@ -10,10 +9,16 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.ObjectTagging;
 import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
 import com.amazonaws.services.s3.model.Tag;
+import io.jhy.rekognition.s3batch.AwsClients;
+import io.jhy.rekognition.s3batch.Logger;
 import io.jhy.rekognition.s3batch.Processor;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Writes labels back to the S3 Object that they were detected in. Uses the format {prefix}{label}={confidence}.
@@ -22,15 +27,22 @@ import java.util.List;
  *     but will leave other tags untouched. It will cap the total amount of tags to 10 (e.g. if an object already has
  *     8 other (non Rekognition label tags), the most it would add is 8 others.
  * </p>
+ * <p>
+ *     The tags are only written when they differ from what the object already has, so re-running over the same
+ *     images costs a GET per image rather than a GET and a PUT. The S3 calls block, so the processor runs them on its
+ *     sink's threads.
+ * </p>
  */
 public class S3ObjectTagger implements LabelProcessor {
     private static final int maxTags = 10;
 
     private final AmazonS3Client s3;
     private final String tagPrefix;
+    private final AtomicLong numWritten = new AtomicLong(0);
+    private final AtomicLong numUnchanged = new AtomicLong(0);
 
-    public S3ObjectTagger(AWSCredentialsProvider creds, String tagPrefix) {
-        s3 = new AmazonS3Client(creds);
+    public S3ObjectTagger(AwsClients clients, String tagPrefix) {
+        s3 = clients.s3();
         this.tagPrefix = tagPrefix;
     }
 
@@ -59,7 +71,35 @@ public class S3ObjectTagger implements LabelProcessor {
                 break;
         }
 
+        // nothing to do if that's what's there already (e.g. on a re-run)
+        if (sameTags(origTags, updateTags)) {
+            numUnchanged.incrementAndGet();
+            Logger.Debug("Tags unchanged on %s", path);
+            return;
+        }
+
         // save it back
         s3.setObjectTagging(new SetObjectTaggingRequest(bucket, key, new ObjectTagging(updateTags)));
+        numWritten.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        Logger.Info("Tagged %s objects, %s were already up to date.", numWritten.get(), numUnchanged.get());
+    }
+
+    // the same tags, in any order
+    private static boolean sameTags(List<Tag> a, List<Tag> b) {
+        if (a.size() != b.size())
+            return false;
+        Map<String, String> byKey = new HashMap<>();
+        for (Tag tag : a) {
+            byKey.put(tag.getKey(), tag.getValue());
+        }
+        for (Tag tag : b) {
+            if (!Objects.equals(byKey.get(tag.getKey()), tag.getValue()))
+                return false;
+        }
+        return true;
     }
 }
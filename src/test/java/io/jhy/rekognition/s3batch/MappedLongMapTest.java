@@ -0,0 +1,124 @@
+package io.jhy.rekognition.s3batch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedLongMapTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void putsAndGets() throws IOException {
+        try (MappedLongMap map = MappedLongMap.open(file(), 100)) {
+            map.put(1, 10);
+            map.put(-5, 50);
+            map.put(Long.MAX_VALUE, Long.MIN_VALUE);
+            assertEquals(10, map.get(1, 0));
+            assertEquals(50, map.get(-5, 0));
+            assertEquals(Long.MIN_VALUE, map.get(Long.MAX_VALUE, 0));
+            assertEquals(-1, map.get(2, -1));
+            assertEquals(3, map.size());
+        }
+    }
+
+    @Test
+    public void replacesWithoutGrowingTheSize() throws IOException {
+        try (MappedLongMap map = MappedLongMap.open(file(), 100)) {
+            map.put(7, 1);
+            map.put(7, 2);
+            assertEquals(2, map.get(7, 0));
+            assertEquals(1, map.size());
+        }
+    }
+
+    @Test
+    public void findsKeysThatCollide() throws IOException {
+        // the table has 16 slots, so these all start probing at slot 3
+        try (MappedLongMap map = MappedLongMap.open(file(), 1)) {
+            for (long key = 3; key < 3 + 16 * 8; key += 16) {
+                map.put(key, key * 2);
+            }
+            for (long key = 3; key < 3 + 16 * 8; key += 16) {
+                assertEquals(key * 2, map.get(key, 0));
+            }
+            assertEquals(0, map.get(3 + 16 * 8, 0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheZeroKey() throws IOException {
+        try (MappedLongMap map = MappedLongMap.open(file(), 100)) {
+            map.put(0, 1);
+        }
+    }
+
+    @Test
+    public void zeroIsMissing() throws IOException {
+        try (MappedLongMap map = MappedLongMap.open(file(), 100)) {
+            map.put(1, 1);
+            assertEquals(42, map.get(0, 42));
+        }
+    }
+
+    @Test
+    public void growsPastTheExpectedKeys() throws IOException {
+        Path file = file();
+        try (MappedLongMap map = MappedLongMap.open(file, 10)) {
+            long before = Files.size(file);
+            for (long key = 1; key <= 10000; key++) {
+                map.put(mix(key), key);
+            }
+            assertTrue(Files.size(file) > before);
+            assertEquals(10000, map.size());
+            for (long key = 1; key <= 10000; key++) {
+                assertEquals(key, map.get(mix(key), 0));
+            }
+        }
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".grow")));
+    }
+
+    @Test
+    public void reopensAnExistingFile() throws IOException {
+        Path file = file();
+        try (MappedLongMap map = MappedLongMap.open(file, 10)) {
+            for (long key = 1; key <= 100; key++) {
+                map.put(mix(key), key);
+            }
+        }
+        // the expected keys only apply to a new file
+        try (MappedLongMap map = MappedLongMap.open(file, 1000000)) {
+            assertEquals(100, map.size());
+            for (long key = 1; key <= 100; key++) {
+                assertEquals(key, map.get(mix(key), 0));
+            }
+            map.put(mix(101), 101);
+            assertEquals(101, map.get(mix(101), 0));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAFileThatIsNotAMap() throws IOException {
+        Path file = file();
+        Files.write(file, new byte[128]);
+        MappedLongMap.open(file, 10);
+    }
+
+    private Path file() {
+        return temp.getRoot().toPath().resolve("test.idx");
+    }
+
+    // spreads sequential keys over the slots, as the hashes the map is meant for would be
+    private static long mix(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return key ^ (key >>> 32);
+    }
+}
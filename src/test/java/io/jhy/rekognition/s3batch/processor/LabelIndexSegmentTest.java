@@ -0,0 +1,131 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LabelIndexSegmentTest {
+    // gaps that take one to five varint bytes
+    private static final int[] wideIds = {0, 1, 127, 255, 16511, 16512, 2113663, 270549119, Integer.MAX_VALUE};
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void roundTripsDocsAndPostings() throws IOException {
+        Path file = file(3, 7);
+        try (LabelIndexSegment.Writer writer = new LabelIndexSegment.Writer(file, wideIds)) {
+            writer.startTerm("Dog");
+            writer.bucket(100, new int[]{1, 255});
+            writer.bucket(50, wideIds);
+            writer.endTerm();
+            writer.startTerm("Golden Retriever");
+            writer.bucket(0, new int[]{Integer.MAX_VALUE});
+            writer.endTerm();
+        }
+
+        LabelIndexSegment segment = LabelIndexSegment.open(file);
+        assertEquals(3, segment.first);
+        assertEquals(7, segment.last);
+        assertEquals(wideIds.length, segment.numDocs());
+        assertArrayEquals(wideIds, segment.docs());
+        assertEquals(new HashSet<>(Arrays.asList("Dog", "Golden Retriever")), segment.terms());
+        for (int id : wideIds) {
+            assertTrue(segment.contains(id));
+        }
+        assertFalse(segment.contains(2));
+        assertFalse(segment.contains(Integer.MAX_VALUE - 1));
+
+        assertArrayEquals(wideIds, segment.postings("Dog", 0));
+        assertArrayEquals(new int[]{Integer.MAX_VALUE}, segment.postings("Golden Retriever", 0));
+        assertArrayEquals(new int[0], segment.postings("Cat", 0));
+    }
+
+    @Test
+    public void readsOnlyTheBucketsAtOrOverTheConfidence() throws IOException {
+        Path file = file(1, 1);
+        try (LabelIndexSegment.Writer writer = new LabelIndexSegment.Writer(file, new int[]{1, 2, 3, 4, 5})) {
+            writer.startTerm("Dog");
+            writer.bucket(95, new int[]{4});
+            writer.bucket(90, new int[]{2, 5});
+            writer.bucket(89, new int[]{1});
+            writer.bucket(0, new int[]{3});
+            writer.endTerm();
+        }
+
+        LabelIndexSegment segment = LabelIndexSegment.open(file);
+        assertArrayEquals(new int[0], segment.postings("Dog", 96));
+        assertArrayEquals(new int[]{4}, segment.postings("Dog", 95));
+        assertArrayEquals(new int[]{2, 4, 5}, segment.postings("Dog", 90));
+        assertArrayEquals(new int[]{1, 2, 4, 5}, segment.postings("Dog", 89));
+        assertArrayEquals(new int[]{1, 2, 4, 5}, segment.postings("Dog", 1));
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5}, segment.postings("Dog", 0));
+
+        int[][] buckets = segment.buckets("Dog");
+        assertArrayEquals(new int[]{2, 5}, buckets[90]);
+        assertArrayEquals(new int[]{3}, buckets[0]);
+        assertNull(buckets[50]);
+        assertNull(segment.buckets("Cat")[0]);
+    }
+
+    @Test
+    public void writesAnEmptySegment() throws IOException {
+        Path file = file(1, 1);
+        new LabelIndexSegment.Writer(file, new int[0]).close();
+        LabelIndexSegment segment = LabelIndexSegment.open(file);
+        assertEquals(0, segment.numDocs());
+        assertFalse(segment.contains(0));
+        assertTrue(segment.terms().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesBucketsOutOfOrder() throws IOException {
+        try (LabelIndexSegment.Writer writer = new LabelIndexSegment.Writer(file(1, 1), new int[]{1})) {
+            writer.startTerm("Dog");
+            writer.bucket(50, new int[]{1});
+            writer.bucket(60, new int[]{1});
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAFileThatIsNotASegment() throws IOException {
+        Path file = file(1, 1);
+        Files.write(file, new byte[64]);
+        LabelIndexSegment.open(file);
+    }
+
+    @Test
+    public void namesFilesByTheirFlushRange() {
+        assertEquals("seg-00000012-00000345.lix", LabelIndexSegment.fileName(12, 345));
+        assertArrayEquals(new int[]{12, 345}, LabelIndexSegment.range(Paths.get("seg-00000012-00000345.lix")));
+        assertNull(LabelIndexSegment.range(Paths.get("seg-00000012-00000345.lix.tmp")));
+        assertNull(LabelIndexSegment.range(Paths.get("paths.dat")));
+    }
+
+    @Test
+    public void unionsAndIntersects() {
+        assertArrayEquals(new int[]{1, 2, 3, 5, 8}, LabelIndexSegment.union(new int[]{1, 3, 5}, new int[]{2, 3, 8}));
+        assertArrayEquals(new int[]{3}, LabelIndexSegment.intersect(new int[]{1, 3, 5}, new int[]{2, 3, 8}));
+        assertArrayEquals(new int[0], LabelIndexSegment.intersect(new int[]{1}, new int[0]));
+        assertArrayEquals(new int[]{1, 2, 3, 4}, LabelIndexSegment.unionAll(Arrays.asList(
+            new int[]{4}, new int[]{1, 2}, new int[]{2, 3}, new int[0], new int[]{1})));
+        assertArrayEquals(new int[0], LabelIndexSegment.unionAll(Arrays.asList()));
+    }
+
+    private Path file(int first, int last) {
+        return temp.getRoot().toPath().resolve(LabelIndexSegment.fileName(first, last));
+    }
+}
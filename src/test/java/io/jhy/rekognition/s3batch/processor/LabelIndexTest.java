@@ -0,0 +1,151 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LabelIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void queriesWhatWasIndexed() throws Exception {
+        LabelIndex index = open();
+        add(index, "bucket/a.jpg", "Dog", 95f, "Outdoors", 80f);
+        add(index, "bucket/b.jpg", "Dog", 60f);
+        add(index, "bucket/c.jpg", "Cat", 99f, "Outdoors", 90f);
+
+        assertEquals(Arrays.asList("bucket/a.jpg"), index.query(LabelQuery.parse("Dog>=90"), -1));
+        assertEquals(2, index.count(LabelQuery.parse("Dog")));
+        assertEquals(2, index.count(LabelQuery.parse("Outdoors AND Dog>=90 OR Cat")));
+        // newest segments first
+        assertEquals(Arrays.asList("bucket/c.jpg", "bucket/a.jpg"), index.query(LabelQuery.parse("Outdoors"), -1));
+        assertEquals(Arrays.asList("bucket/c.jpg"), index.query(LabelQuery.parse("Outdoors"), 1));
+        index.close();
+
+        LabelIndex readOnly = LabelIndex.openReadOnly(dir());
+        assertEquals(Arrays.asList("bucket/b.jpg", "bucket/a.jpg"), readOnly.query(LabelQuery.parse("Dog"), -1));
+        assertEquals(1, readOnly.count(LabelQuery.parse("Dog>=90")));
+        readOnly.close();
+    }
+
+    @Test
+    public void replacesTheLabelsOfAnImageIndexedAgain() throws Exception {
+        LabelIndex index = open();
+        add(index, "bucket/a.jpg", "Dog", 95f);
+        add(index, "bucket/a.jpg", "Cat", 95f);
+
+        assertEquals(0, index.count(LabelQuery.parse("Dog")));
+        assertEquals(Arrays.asList("bucket/a.jpg"), index.query(LabelQuery.parse("Cat"), -1));
+        index.close();
+    }
+
+    @Test
+    public void mergesSegmentsDroppingReplacedImages() throws Exception {
+        LabelIndex index = open();
+        // ten one-image flushes make a run to merge; a.jpg is indexed again in the sixth
+        add(index, "bucket/a.jpg", "Dog", 95f);
+        for (int i = 1; i <= 4; i++) {
+            add(index, "bucket/" + i + ".jpg", "Dog", 80f);
+        }
+        add(index, "bucket/a.jpg", "Cat", 90f);
+        for (int i = 5; i <= 8; i++) {
+            add(index, "bucket/" + i + ".jpg", "Dog", 80f);
+        }
+        index.close(); // waits for the merge
+
+        assertEquals(Arrays.asList(LabelIndexSegment.fileName(1, 10)), segmentFiles());
+        LabelIndexSegment merged = LabelIndexSegment.open(dir().resolve(LabelIndexSegment.fileName(1, 10)));
+        assertEquals(9, merged.numDocs());
+        // a.jpg was id 0: gone from Dog's postings, not just hidden at query time
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 6, 7, 8}, merged.postings("Dog", 0));
+        assertArrayEquals(new int[]{0}, merged.postings("Cat", 0));
+
+        LabelIndex readOnly = LabelIndex.openReadOnly(dir());
+        assertEquals(8, readOnly.count(LabelQuery.parse("Dog")));
+        assertEquals(Arrays.asList("bucket/a.jpg"), readOnly.query(LabelQuery.parse("Cat"), -1));
+        readOnly.close();
+    }
+
+    @Test
+    public void choosesAMergedSegmentOverItsInputsAfterACrash() throws Exception {
+        LabelIndex index = open();
+        add(index, "bucket/a.jpg", "Dog", 95f);
+        add(index, "bucket/b.jpg", "Dog", 95f);
+        add(index, "bucket/c.jpg", "Dog", 95f);
+        index.close();
+
+        // as if a merge renamed its output into place, then the process died before deleting its inputs, and a
+        // later merge had only written its temp file
+        try (LabelIndexSegment.Writer writer = new LabelIndexSegment.Writer(
+            dir().resolve(LabelIndexSegment.fileName(1, 3)), new int[]{0, 1, 2})) {
+            writer.startTerm("Merged");
+            writer.bucket(80, new int[]{0, 1, 2});
+            writer.endTerm();
+        }
+        Path tmp = Files.write(dir().resolve(LabelIndexSegment.fileName(1, 4) + ".tmp"), new byte[10]);
+
+        // a reader picks the merged segment, and leaves the files alone
+        LabelIndex readOnly = LabelIndex.openReadOnly(dir());
+        assertEquals(3, readOnly.count(LabelQuery.parse("Merged")));
+        assertEquals(0, readOnly.count(LabelQuery.parse("Dog")));
+        readOnly.close();
+        assertEquals(4, segmentFiles().size());
+        assertTrue(Files.exists(tmp));
+
+        // a writer does the same, and cleans up
+        index = open();
+        assertEquals(Arrays.asList(LabelIndexSegment.fileName(1, 3)), segmentFiles());
+        assertFalse(Files.exists(tmp));
+        assertEquals(3, index.count(LabelQuery.parse("Merged")));
+        assertEquals(0, index.count(LabelQuery.parse("Dog")));
+
+        // and flushes carry on after the merged range
+        add(index, "bucket/d.jpg", "Dog", 95f);
+        index.close();
+        assertEquals(Arrays.asList(LabelIndexSegment.fileName(1, 3), LabelIndexSegment.fileName(4, 4)),
+            segmentFiles());
+    }
+
+    // flushes after every result, so each add makes a segment
+    private LabelIndex open() throws IOException {
+        return new LabelIndex(dir(), 60000, 1, 100);
+    }
+
+    private static void add(LabelIndex index, String path, Object... nameConfidences) throws Exception {
+        List<Label> labels = new ArrayList<>();
+        for (int i = 0; i < nameConfidences.length; i += 2) {
+            labels.add(new Label().withName((String) nameConfidences[i]).withConfidence((Float) nameConfidences[i + 1]));
+        }
+        index.processAsync(labels, path).get();
+    }
+
+    private List<String> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir())) {
+            List<String> names = files.map(file -> file.getFileName().toString())
+                .filter(name -> name.endsWith(".lix")).collect(Collectors.toList());
+            Collections.sort(names);
+            return names;
+        }
+    }
+
+    private Path dir() {
+        return temp.getRoot().toPath();
+    }
+}
@@ -0,0 +1,153 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import com.amazonaws.services.rekognition.model.Label;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LabelLogTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void roundTripsResults() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        LabelLogWriter writer = new LabelLogWriter(dir, 64 * 1024 * 1024);
+        writer.process(labels("Dog", 97.6f, "Outdoors", 70.2f), "bucket/photos/2017/dog.jpg");
+        writer.process(labels(), "bucket/photos/2017/empty.jpg");
+        writer.process(labels("Dog", 0.4f, "Caf\u00e9", 100f), "bucket/photos/2017/dogs/\u00fcn\u00efcode.jpg");
+        writer.close();
+
+        List<String> read = readAll(dir);
+        assertEquals(Arrays.asList(
+            "bucket/photos/2017/dog.jpg Dog=98.0 Outdoors=70.0",
+            "bucket/photos/2017/empty.jpg",
+            "bucket/photos/2017/dogs/\u00fcn\u00efcode.jpg Dog=0.0 Caf\u00e9=100.0"), read);
+    }
+
+    @Test
+    public void storesOnlyWhatAPathDoesNotShareWithThePreviousOne() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        String prefix = "bucket/a/long/shared/prefix/for/every/image/in/this/part/of/the/bucket/";
+        LabelLogWriter writer = new LabelLogWriter(dir, 64 * 1024 * 1024);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String path = prefix + String.format("%04d.jpg", i);
+            writer.process(labels("Dog", 90f), path);
+            expected.add(path + " Dog=90.0");
+        }
+        writer.close();
+
+        assertEquals(expected, readAll(dir));
+        // the prefix is stored once, the rest in well under its length per result
+        assertTrue(Files.size(segments(dir).get(0)) < prefix.length() + 100 * 20);
+    }
+
+    @Test
+    public void definesNamesAgainInEachSegment() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        // any segment size over the header rolls for each write
+        LabelLogWriter writer = new LabelLogWriter(dir, 1);
+        writer.process(labels("Dog", 90f, "Cat", 80f), "bucket/a.jpg");
+        writer.process(labels("Cat", 70f, "Dog", 60f), "bucket/b.jpg");
+        writer.process(labels("Cat", 50f), "bucket/c.jpg");
+        writer.close();
+
+        List<Path> segments = segments(dir);
+        assertEquals(3, segments.size());
+        // each segment stands alone, with its own dictionary and no shared path
+        assertEquals(Arrays.asList("bucket/b.jpg Cat=70.0 Dog=60.0"), readSegment(segments.get(1)));
+        assertEquals(Arrays.asList("bucket/c.jpg Cat=50.0"), readSegment(segments.get(2)));
+        assertEquals(Arrays.asList(
+            "bucket/a.jpg Dog=90.0 Cat=80.0",
+            "bucket/b.jpg Cat=70.0 Dog=60.0",
+            "bucket/c.jpg Cat=50.0"), readAll(dir));
+    }
+
+    @Test
+    public void startsANewSegmentAfterTheExistingOnes() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        LabelLogWriter writer = new LabelLogWriter(dir, 64 * 1024 * 1024);
+        writer.process(labels("Dog", 90f), "bucket/a.jpg");
+        writer.close();
+        writer = new LabelLogWriter(dir, 64 * 1024 * 1024);
+        writer.process(labels("Cat", 90f), "bucket/a.jpg");
+        writer.close();
+
+        assertEquals(2, segments(dir).size());
+        assertEquals(Arrays.asList("bucket/a.jpg Dog=90.0", "bucket/a.jpg Cat=90.0"), readAll(dir));
+    }
+
+    @Test
+    public void readsATruncatedSegmentUpToItsLastWholeRecord() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        LabelLogWriter writer = new LabelLogWriter(dir, 64 * 1024 * 1024);
+        writer.process(labels("Dog", 90f), "bucket/a.jpg");
+        writer.process(labels("Dog", 80f), "bucket/b.jpg");
+        writer.process(labels("Dog", 70f, "Outdoors", 60f), "bucket/c.jpg");
+        writer.close();
+
+        Path segment = segments(dir).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 2);
+        }
+        assertEquals(Arrays.asList("bucket/a.jpg Dog=90.0", "bucket/b.jpg Dog=80.0"), readAll(dir));
+    }
+
+    @Test
+    public void skipsFilesThatAreNotSegments() throws IOException {
+        Path dir = temp.getRoot().toPath();
+        Files.write(dir.resolve("labels-00000001.seg"), new byte[]{1, 2, 3, 4, 5, 6});
+        Files.write(dir.resolve("notes.txt"), new byte[]{1});
+        assertEquals(0, LabelLogReader.read(dir, (path, labels) -> {
+        }));
+    }
+
+    private static List<Label> labels(Object... nameConfidences) {
+        List<Label> labels = new ArrayList<>();
+        for (int i = 0; i < nameConfidences.length; i += 2) {
+            labels.add(new Label().withName((String) nameConfidences[i]).withConfidence((Float) nameConfidences[i + 1]));
+        }
+        return labels;
+    }
+
+    private static List<String> readAll(Path dir) throws IOException {
+        List<String> results = new ArrayList<>();
+        LabelLogReader.read(dir, (path, labels) -> results.add(describe(path, labels)));
+        return results;
+    }
+
+    private static List<String> readSegment(Path segment) throws IOException {
+        List<String> results = new ArrayList<>();
+        LabelLogReader.readSegment(segment, (path, labels) -> results.add(describe(path, labels)));
+        return results;
+    }
+
+    private static String describe(String path, List<Label> labels) {
+        StringBuilder out = new StringBuilder(path);
+        for (Label label : labels) {
+            out.append(' ').append(label.getName()).append('=').append(label.getConfidence());
+        }
+        return out.toString();
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> LabelLogFormat.segmentNumber(file) >= 0).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.jhy.rekognition.s3batch.processor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LabelQueryTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private LabelIndexSegment segment;
+
+    @Before
+    public void writeSegment() throws IOException {
+        Path file = temp.getRoot().toPath().resolve(LabelIndexSegment.fileName(1, 1));
+        try (LabelIndexSegment.Writer writer = new LabelIndexSegment.Writer(file, new int[]{1, 2, 3, 4, 5})) {
+            writer.startTerm("Cat");
+            writer.bucket(85, new int[]{5});
+            writer.bucket(60, new int[]{1});
+            writer.endTerm();
+            writer.startTerm("Dog");
+            writer.bucket(95, new int[]{1, 2});
+            writer.bucket(80, new int[]{3});
+            writer.endTerm();
+            writer.startTerm("Golden Retriever");
+            writer.bucket(99, new int[]{2});
+            writer.endTerm();
+            writer.startTerm("Outdoors");
+            writer.bucket(70, new int[]{2, 3, 4});
+            writer.endTerm();
+        }
+        segment = LabelIndexSegment.open(file);
+    }
+
+    @Test
+    public void parsesLabelsWithAndWithoutConfidences() {
+        assertEquals("Dog", LabelQuery.parse("Dog").toString());
+        assertEquals("Dog>=90", LabelQuery.parse(" Dog >= 90 ").toString());
+        assertEquals("Golden Retriever>=80", LabelQuery.parse("Golden Retriever>=80").toString());
+    }
+
+    @Test
+    public void bindsAndTighterThanOr() {
+        assertEquals("(Dog>=90 AND Outdoors OR Cat>=80)",
+            LabelQuery.parse("Dog>=90 AND Outdoors OR Cat>=80").toString());
+        assertEquals("(Cat OR Dog AND Outdoors>=70)", LabelQuery.parse("Cat OR Dog AND Outdoors>=70").toString());
+        assertEquals("((Cat OR Dog) OR Outdoors)", LabelQuery.parse("Cat OR Dog OR Outdoors").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesABadConfidence() {
+        LabelQuery.parse("Dog>=high");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAConfidenceWithoutALabel() {
+        LabelQuery.parse("Dog AND >=90");
+    }
+
+    @Test
+    public void refusesAMissingLabel() {
+        for (String query : new String[]{"", "Dog AND", "AND Dog", "Dog AND  AND Cat", "Dog OR", "Dog OR AND Cat"}) {
+            try {
+                LabelQuery.parse(query);
+                fail("Parsed '" + query + "'");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void readsKeywordsOnlyAsWholeWords() {
+        assertEquals("(ANDROID OR ORANGE)", LabelQuery.parse("ANDROID OR ORANGE").toString());
+        assertEquals("Sand AND Door", LabelQuery.parse("Sand AND Door").toString());
+    }
+
+    @Test
+    public void matchesLabelsAtOrOverTheirConfidence() {
+        assertArrayEquals(new int[]{1, 2, 3}, matches("Dog"));
+        assertArrayEquals(new int[]{1, 2}, matches("Dog>=95"));
+        assertArrayEquals(new int[0], matches("Dog>=96"));
+        assertArrayEquals(new int[]{2}, matches("Golden Retriever"));
+        assertArrayEquals(new int[0], matches("Horse"));
+    }
+
+    @Test
+    public void intersectsAndUnions() {
+        assertArrayEquals(new int[]{2}, matches("Dog>=90 AND Outdoors"));
+        assertArrayEquals(new int[]{2, 5}, matches("Dog>=90 AND Outdoors OR Cat>=80"));
+        assertArrayEquals(new int[]{1, 2, 3, 5}, matches("Cat OR Dog AND Outdoors>=70"));
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5}, matches("Cat OR Dog OR Outdoors"));
+        assertArrayEquals(new int[0], matches("Horse AND Dog"));
+        assertArrayEquals(new int[0], matches("Dog AND Horse"));
+        assertArrayEquals(new int[]{1, 2, 3}, matches("Horse OR Dog"));
+    }
+
+    @Test
+    public void buildsTheSameQueriesAsItParses() {
+        LabelQuery built = LabelQuery.label("Dog", 90).and(LabelQuery.label("Outdoors", 0))
+            .or(LabelQuery.label("Cat", 80));
+        assertEquals(LabelQuery.parse("Dog>=90 AND Outdoors OR Cat>=80").toString(), built.toString());
+        assertArrayEquals(new int[]{2, 5}, built.matches(segment));
+    }
+
+    private int[] matches(String query) {
+        return LabelQuery.parse(query).matches(segment);
+    }
+}